@@ -0,0 +1,481 @@
+package com.hewutao;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.memory.RootAllocator;
+import org.apache.arrow.vector.BigIntVector;
+import org.apache.arrow.vector.BitVector;
+import org.apache.arrow.vector.DateDayVector;
+import org.apache.arrow.vector.FieldVector;
+import org.apache.arrow.vector.Float4Vector;
+import org.apache.arrow.vector.Float8Vector;
+import org.apache.arrow.vector.IntVector;
+import org.apache.arrow.vector.SmallIntVector;
+import org.apache.arrow.vector.TimeStampMicroTZVector;
+import org.apache.arrow.vector.TimeStampMicroVector;
+import org.apache.arrow.vector.VarBinaryVector;
+import org.apache.arrow.vector.VarCharVector;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowFileWriter;
+import org.apache.arrow.vector.types.DateUnit;
+import org.apache.arrow.vector.types.FloatingPointPrecision;
+import org.apache.arrow.vector.types.TimeUnit;
+import org.apache.arrow.vector.types.pojo.ArrowType;
+import org.apache.arrow.vector.types.pojo.FieldType;
+import org.apache.arrow.vector.types.pojo.Schema;
+import org.postgresql.core.Field;
+import org.postgresql.core.Oid;
+import org.postgresql.core.Query;
+import org.postgresql.core.ResultCursor;
+import org.postgresql.util.GT;
+import org.postgresql.util.PGbytea;
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.PSQLState;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams query results into an Arrow IPC file.
+ *
+ * Text-format column values are parsed straight from the DataRow bytes into
+ * Arrow vectors, and a record batch is written every {@code batchSize} rows,
+ * so memory use is bounded by one batch regardless of the result size.
+ *
+ * Type mapping: int2/int4/int8/oid to signed integers, float4/float8 to
+ * floating point, bool to bit, date to day-resolution dates, timestamp and
+ * timestamptz to microsecond timestamps (UTC for timestamptz), bytea to binary
+ * and everything else, including numeric, to UTF-8 strings. Binary-format
+ * columns are exported as raw bytes. Dates and timestamps are expected in ISO
+ * DateStyle; infinite values are exported as null.
+ *
+ * All result sets of a query go into the same file and so must have the same
+ * columns. Call {@link #close()} to finish the file.
+ */
+public class ArrowExportResultHandler implements StreamingResultHandler, Closeable {
+    public static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final int batchSize;
+
+    private BufferAllocator allocator;
+    private VectorSchemaRoot root;
+    private ArrowFileWriter writer;
+    private ColumnWriter[] columns;
+    private int rowCount;
+    private long totalRows;
+    private boolean skipping;
+
+    private SQLException error;
+
+    public ArrowExportResultHandler(WritableByteChannel channel) {
+        this(channel, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param batchSize rows per record batch, at least 1
+     */
+    public ArrowExportResultHandler(WritableByteChannel channel, int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be at least 1: " + batchSize);
+
+        this.channel = channel;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void handleRowDescription(Field[] fields) {
+        Schema schema = toSchema(fields);
+        skipping = false;
+
+        if (writer == null)
+        {
+            try
+            {
+                allocator = new RootAllocator();
+                root = VectorSchemaRoot.create(schema, allocator);
+                writer = new ArrowFileWriter(root, null, channel);
+                writer.start();
+            }
+            catch (IOException e)
+            {
+                fail(e);
+                return;
+            }
+
+            columns = new ColumnWriter[fields.length];
+            for (int i = 0; i < fields.length; i++)
+                columns[i] = ColumnWriter.create(fields[i], root.getVector(i));
+            root.allocateNew();
+        }
+        else if (!schema.equals(root.getSchema()))
+        {
+            handleError(new PSQLException(GT.tr("Result set columns differ from the first result set exported: {0}", schema), PSQLState.DATA_TYPE_MISMATCH));
+            skipping = true;
+        }
+    }
+
+    @Override
+    public void handleRow(byte[][] tuple) {
+        if (skipping)
+            return;
+
+        try
+        {
+            for (int i = 0; i < columns.length; i++)
+                columns[i].write(rowCount, tuple[i]);
+        }
+        catch (SQLException e)
+        {
+            handleError(e);
+            skipping = true;
+            return;
+        }
+        catch (RuntimeException e)
+        {
+            handleError(new PSQLException(GT.tr("Could not convert row {0} for export.", totalRows + rowCount), PSQLState.DATA_ERROR, e));
+            skipping = true;
+            return;
+        }
+
+        if (++rowCount == batchSize)
+            writeBatch();
+    }
+
+    @Override
+    public void handleResultRows(Query fromQuery, Field[] fields, List tuples, ResultCursor cursor) {
+        // end of a result set; rows were already handed to handleRow
+        if (!skipping && rowCount > 0)
+            writeBatch();
+    }
+
+    @Override
+    public void handleCommandStatus(String status, int updateCount, long insertOID) {
+    }
+
+    @Override
+    public void handleWarning(SQLWarning warning) {
+    }
+
+    @Override
+    public void handleError(SQLException newError) {
+        if (error == null)
+            error = newError;
+        else
+            error.setNextException(newError);
+    }
+
+    @Override
+    public void handleCompletion() throws SQLException {
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * @return the number of rows written so far
+     */
+    public long getRowCount() {
+        return totalRows;
+    }
+
+    /**
+     * Write the file footer and release the Arrow buffers. The channel itself
+     * is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (writer == null)
+            return;
+
+        try
+        {
+            if (!skipping && rowCount > 0)
+            {
+                root.setRowCount(rowCount);
+                writer.writeBatch();
+            }
+            writer.end();
+        }
+        finally
+        {
+            writer = null;
+            root.close();
+            allocator.close();
+        }
+    }
+
+    private void writeBatch() {
+        try
+        {
+            root.setRowCount(rowCount);
+            writer.writeBatch();
+            totalRows += rowCount;
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+        finally
+        {
+            rowCount = 0;
+            root.allocateNew();
+        }
+    }
+
+    private void fail(IOException e) {
+        handleError(new PSQLException(GT.tr("Could not write Arrow export."), PSQLState.COMMUNICATION_ERROR, e));
+        skipping = true;
+    }
+
+    private static Schema toSchema(Field[] fields) {
+        List<org.apache.arrow.vector.types.pojo.Field> arrowFields = new ArrayList<org.apache.arrow.vector.types.pojo.Field>(fields.length);
+        for (Field field : fields)
+            arrowFields.add(new org.apache.arrow.vector.types.pojo.Field(field.getColumnLabel(), FieldType.nullable(toArrowType(field)), null));
+        return new Schema(arrowFields);
+    }
+
+    private static ArrowType toArrowType(Field field) {
+        if (field.getFormat() == Field.BINARY_FORMAT)
+            return ArrowType.Binary.INSTANCE;
+
+        switch (field.getOID())
+        {
+            case Oid.INT2:
+                return new ArrowType.Int(16, true);
+            case Oid.INT4:
+                return new ArrowType.Int(32, true);
+            case Oid.INT8:
+            case Oid.OID:
+                return new ArrowType.Int(64, true);
+            case Oid.FLOAT4:
+                return new ArrowType.FloatingPoint(FloatingPointPrecision.SINGLE);
+            case Oid.FLOAT8:
+                return new ArrowType.FloatingPoint(FloatingPointPrecision.DOUBLE);
+            case Oid.BOOL:
+                return ArrowType.Bool.INSTANCE;
+            case Oid.DATE:
+                return new ArrowType.Date(DateUnit.DAY);
+            case Oid.TIMESTAMP:
+                return new ArrowType.Timestamp(TimeUnit.MICROSECOND, null);
+            case Oid.TIMESTAMPTZ:
+                return new ArrowType.Timestamp(TimeUnit.MICROSECOND, "UTC");
+            case Oid.BYTEA:
+                return ArrowType.Binary.INSTANCE;
+            default:
+                return ArrowType.Utf8.INSTANCE;
+        }
+    }
+
+    /**
+     * Parses one column of text-format values into its vector.
+     */
+    private abstract static class ColumnWriter {
+        private final FieldVector vector;
+
+        ColumnWriter(FieldVector vector) {
+            this.vector = vector;
+        }
+
+        final void write(int row, byte[] value) throws SQLException {
+            if (value == null)
+                vector.setNull(row);
+            else
+                writeValue(row, value);
+        }
+
+        abstract void writeValue(int row, byte[] value) throws SQLException;
+
+        static ColumnWriter create(Field field, final FieldVector vector) {
+            if (field.getFormat() == Field.BINARY_FORMAT)
+            {
+                return new ColumnWriter(vector) {
+                    void writeValue(int row, byte[] value) {
+                        ((VarBinaryVector) vector).setSafe(row, value);
+                    }
+                };
+            }
+
+            switch (field.getOID())
+            {
+                case Oid.INT2:
+                    return new ColumnWriter(vector) {
+                        void writeValue(int row, byte[] value) {
+                            ((SmallIntVector) vector).setSafe(row, (int) parseLong(value, 0, value.length));
+                        }
+                    };
+                case Oid.INT4:
+                    return new ColumnWriter(vector) {
+                        void writeValue(int row, byte[] value) {
+                            ((IntVector) vector).setSafe(row, (int) parseLong(value, 0, value.length));
+                        }
+                    };
+                case Oid.INT8:
+                case Oid.OID:
+                    return new ColumnWriter(vector) {
+                        void writeValue(int row, byte[] value) {
+                            ((BigIntVector) vector).setSafe(row, parseLong(value, 0, value.length));
+                        }
+                    };
+                case Oid.FLOAT4:
+                    return new ColumnWriter(vector) {
+                        void writeValue(int row, byte[] value) {
+                            ((Float4Vector) vector).setSafe(row, Float.parseFloat(ascii(value)));
+                        }
+                    };
+                case Oid.FLOAT8:
+                    return new ColumnWriter(vector) {
+                        void writeValue(int row, byte[] value) {
+                            ((Float8Vector) vector).setSafe(row, Double.parseDouble(ascii(value)));
+                        }
+                    };
+                case Oid.BOOL:
+                    return new ColumnWriter(vector) {
+                        void writeValue(int row, byte[] value) {
+                            ((BitVector) vector).setSafe(row, value[0] == 't' ? 1 : 0);
+                        }
+                    };
+                case Oid.DATE:
+                    return new ColumnWriter(vector) {
+                        void writeValue(int row, byte[] value) {
+                            if (isInfinity(value))
+                                vector.setNull(row);
+                            else
+                                ((DateDayVector) vector).setSafe(row, (int) parseEpochDay(value, 0, value.length));
+                        }
+                    };
+                case Oid.TIMESTAMP:
+                    return new ColumnWriter(vector) {
+                        void writeValue(int row, byte[] value) {
+                            if (isInfinity(value))
+                                vector.setNull(row);
+                            else
+                                ((TimeStampMicroVector) vector).setSafe(row, parseEpochMicros(value));
+                        }
+                    };
+                case Oid.TIMESTAMPTZ:
+                    return new ColumnWriter(vector) {
+                        void writeValue(int row, byte[] value) {
+                            if (isInfinity(value))
+                                vector.setNull(row);
+                            else
+                                ((TimeStampMicroTZVector) vector).setSafe(row, parseEpochMicros(value));
+                        }
+                    };
+                case Oid.BYTEA:
+                    return new ColumnWriter(vector) {
+                        void writeValue(int row, byte[] value) throws SQLException {
+                            ((VarBinaryVector) vector).setSafe(row, PGbytea.toBytes(value));
+                        }
+                    };
+                default:
+                    // DataRow text is already in the client encoding, which is UTF-8 for this driver
+                    return new ColumnWriter(vector) {
+                        void writeValue(int row, byte[] value) {
+                            ((VarCharVector) vector).setSafe(row, value);
+                        }
+                    };
+            }
+        }
+    }
+
+    private static String ascii(byte[] value) {
+        return new String(value, StandardCharsets.US_ASCII);
+    }
+
+    private static boolean isInfinity(byte[] value) {
+        return value[value.length - 1] == 'y' && (value[0] == 'i' || value[0] == '-' && value[1] == 'i');
+    }
+
+    private static long parseLong(byte[] b, int start, int end) {
+        boolean negative = b[start] == '-';
+        int i = negative || b[start] == '+' ? start + 1 : start;
+        if (i == end)
+            throw new NumberFormatException(ascii(b));
+
+        long result = 0;
+        for (; i < end; i++)
+        {
+            int digit = b[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException(ascii(b));
+            result = result * 10 - digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private static int indexOf(byte[] b, int from, int end, char c) {
+        for (int i = from; i < end; i++)
+            if (b[i] == c)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Days since 1970-01-01 of an ISO date {@code YYYY-MM-DD[ BC]} starting at
+     * {@code start}; {@code end} bounds the date part.
+     */
+    private static long parseEpochDay(byte[] b, int start, int end) {
+        int yearEnd = indexOf(b, start, end, '-');
+        long year = parseLong(b, start, yearEnd);
+        int month = (int) parseLong(b, yearEnd + 1, yearEnd + 3);
+        int day = (int) parseLong(b, yearEnd + 4, yearEnd + 6);
+
+        // the "BC" suffix follows the whole value, so look at the end of the array
+        if (b.length >= 3 && b[b.length - 2] == 'B' && b[b.length - 1] == 'C')
+            year = 1 - year;
+
+        // days from civil, proleptic Gregorian calendar
+        year -= month <= 2 ? 1 : 0;
+        long era = Math.floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Microseconds since the epoch of an ISO timestamp
+     * {@code YYYY-MM-DD HH:MM:SS[.ffffff][+HH[:MM[:SS]]][ BC]}, converted to UTC
+     * when it carries a zone offset.
+     */
+    private static long parseEpochMicros(byte[] b) {
+        int space = indexOf(b, 0, b.length, ' ');
+        long days = parseEpochDay(b, 0, space);
+
+        int t = space + 1;
+        long seconds = parseLong(b, t, t + 2) * 3600 + parseLong(b, t + 3, t + 5) * 60 + parseLong(b, t + 6, t + 8);
+        int i = t + 8;
+
+        long micros = 0;
+        if (i < b.length && b[i] == '.')
+        {
+            int digits = 0;
+            for (i++; i < b.length && b[i] >= '0' && b[i] <= '9'; i++, digits++)
+                micros = micros * 10 + (b[i] - '0');
+            for (; digits < 6; digits++)
+                micros *= 10;
+        }
+
+        if (i < b.length && (b[i] == '+' || b[i] == '-'))
+        {
+            int sign = b[i] == '-' ? -1 : 1;
+            long offset = parseLong(b, i + 1, i + 3) * 3600;
+            i += 3;
+            if (i < b.length && b[i] == ':')
+            {
+                offset += parseLong(b, i + 1, i + 3) * 60;
+                i += 3;
+                if (i < b.length && b[i] == ':')
+                    offset += parseLong(b, i + 1, i + 3);
+            }
+            seconds -= sign * offset;
+        }
+
+        return (days * 86400 + seconds) * 1000000 + micros;
+    }
+}
@@ -0,0 +1,413 @@
+package com.hewutao;
+
+import org.postgresql.core.Encoding;
+import org.postgresql.core.ResultHandler;
+import org.postgresql.util.GT;
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.PSQLState;
+import org.postgresql.util.ServerErrorMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A non-blocking backend connection driven by an {@link EventLoop}.
+ *
+ * Incoming bytes are split into complete messages, each handed to a
+ * {@link ResultProcessor} for the query at the head of the queue, exactly as
+ * {@link QueryExecutorWrapper#processResults} would. Queries may be pipelined:
+ * they are sent as soon as they are submitted and answered in order.
+ *
+ * ParameterStatus and NotificationResponse messages are consumed by the
+ * connection itself.
+ */
+public class AsyncConnection {
+    private static final int PROTOCOL_VERSION_3 = 3 << 16;
+    private static final int INITIAL_READ_BUFFER = 64 * 1024;
+
+    private final EventLoop loop;
+    private final String database;
+    private final String user;
+    private final String password;
+    private final Encoding encoding = Encoding.getDatabaseEncoding("UTF8");
+    private final MessageInput input = new MessageInput(encoding);
+    private final CompletableFuture<AsyncConnection> connected = new CompletableFuture<AsyncConnection>();
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+
+    private boolean ready;
+    private Throwable failure;
+    private final ArrayDeque<Request> waiting = new ArrayDeque<Request>();
+    private final ArrayDeque<Request> inFlight = new ArrayDeque<Request>();
+    private ResultProcessor current;
+
+    private RowDescriptionCache rowDescriptionCache = RowDescriptionCache.shared();
+    private int dictionaryMaxDistinctValues;
+    private ServerMessagePolicy serverMessagePolicy = ServerMessagePolicy.EAGER;
+
+    AsyncConnection(EventLoop loop, String database, String user, String password) {
+        this.loop = loop;
+        this.database = database;
+        this.user = user;
+        this.password = password;
+    }
+
+    /**
+     * @see QueryExecutorWrapper#setRowDescriptionCache
+     */
+    public void setRowDescriptionCache(RowDescriptionCache rowDescriptionCache) {
+        loop.execute(() -> this.rowDescriptionCache = rowDescriptionCache);
+    }
+
+    /**
+     * @see QueryExecutorWrapper#setDictionaryEncoding
+     */
+    public void setDictionaryEncoding(int maxDistinctValues) {
+        int checked = DictionaryTupleList.checkMaxDistinctValues(maxDistinctValues);
+        loop.execute(() -> this.dictionaryMaxDistinctValues = checked);
+    }
+
+    /**
+     * @see QueryExecutorWrapper#setServerMessagePolicy
+     */
+    public void setServerMessagePolicy(ServerMessagePolicy serverMessagePolicy) {
+        loop.execute(() -> this.serverMessagePolicy = serverMessagePolicy);
+    }
+
+    /**
+     * Send a simple query. The handler is called on the event loop thread as
+     * results arrive; the future completes after
+     * {@link ResultHandler#handleCompletion()}, exceptionally if that throws.
+     */
+    public CompletableFuture<Void> query(String sql, ResultHandler handler) {
+        Request request = new Request(sql, handler);
+        loop.execute(() -> {
+            if (failure != null)
+            {
+                request.future.completeExceptionally(failure);
+                return;
+            }
+
+            if (ready)
+                send(request);
+            else
+                waiting.add(request);
+        });
+        return request.future;
+    }
+
+    /**
+     * Send Terminate and close the socket, failing any queries still pending.
+     */
+    public void close() {
+        loop.execute(() -> {
+            if (channel != null && channel.isConnected() && failure == null)
+            {
+                ByteBuffer terminate = ByteBuffer.allocate(5);
+                terminate.put((byte) 'X').putInt(4).flip();
+                try
+                {
+                    channel.write(terminate);
+                }
+                catch (IOException e)
+                {
+                    // closing anyway
+                }
+            }
+            fail(new PSQLException(GT.tr("This connection has been closed."), PSQLState.CONNECTION_DOES_NOT_EXIST));
+        });
+    }
+
+    CompletableFuture<AsyncConnection> connected() {
+        return connected;
+    }
+
+    void attach(SocketChannel channel, SelectionKey key) {
+        this.channel = channel;
+        this.key = key;
+    }
+
+    void onConnectable() throws IOException {
+        if (!channel.finishConnect())
+            return;
+
+        key.interestOps(SelectionKey.OP_READ);
+        write(startupMessage());
+    }
+
+    void onReadable() throws IOException {
+        int n = channel.read(readBuffer);
+        if (n < 0)
+            throw new EOFException("connection closed by server");
+
+        readBuffer.flip();
+        while (readBuffer.remaining() >= 5)
+        {
+            int start = readBuffer.position();
+            int total = 1 + readBuffer.getInt(start + 1);
+            if (total < 5)
+                throw new IOException("invalid message length " + (total - 1));
+
+            if (readBuffer.remaining() < total)
+            {
+                if (total > readBuffer.capacity())
+                {
+                    ByteBuffer bigger = ByteBuffer.allocate(total);
+                    bigger.put(readBuffer);
+                    readBuffer = bigger;
+                    return;
+                }
+                break;
+            }
+
+            ByteBuffer message = readBuffer.slice();
+            message.limit(total);
+            readBuffer.position(start + total);
+            dispatch(message);
+
+            if (failure != null)
+                return;
+        }
+        readBuffer.compact();
+    }
+
+    void onWritable() throws IOException {
+        flush();
+    }
+
+    void fail(Throwable cause) {
+        if (failure != null)
+            return;
+        failure = cause;
+
+        connected.completeExceptionally(cause);
+        for (Request request : inFlight)
+            request.future.completeExceptionally(cause);
+        for (Request request : waiting)
+            request.future.completeExceptionally(cause);
+        inFlight.clear();
+        waiting.clear();
+        writeQueue.clear();
+
+        if (key != null)
+            key.cancel();
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                // already failed
+            }
+        }
+    }
+
+    private void dispatch(ByteBuffer message) throws IOException {
+        input.setMessage(message);
+        int c = input.ReceiveChar();
+
+        if (!ready)
+        {
+            handleStartupMessage(c);
+            return;
+        }
+
+        switch (c)
+        {
+            case 'S':  // Parameter Status
+            case 'A':  // Asynchronous Notify
+                input.Skip(input.ReceiveInteger4() - 4);
+                return;
+        }
+
+        if (current == null)
+        {
+            Request request = inFlight.peek();
+            if (request == null)
+                throw new IOException("Unexpected packet type: " + c);
+            current = new ResultProcessor(input, request.handler, 0, rowDescriptionCache, dictionaryMaxDistinctValues, serverMessagePolicy);
+        }
+
+        if (current.handleMessage(c))
+        {
+            current = null;
+            complete(inFlight.poll());
+        }
+    }
+
+    private void complete(Request request) {
+        try
+        {
+            request.handler.handleCompletion();
+            request.future.complete(null);
+        }
+        catch (SQLException e)
+        {
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    private void handleStartupMessage(int c) throws IOException {
+        int len = input.ReceiveInteger4();
+        switch (c)
+        {
+            case 'R':  // Authentication request
+                int areq = input.ReceiveInteger4();
+                switch (areq)
+                {
+                    case 0:  // AuthenticationOk
+                        break;
+                    case 3:  // AuthenticationCleartextPassword
+                        write(passwordMessage(password));
+                        break;
+                    case 5:  // AuthenticationMD5Password
+                        write(passwordMessage(md5Password(input.Receive(4))));
+                        break;
+                    default:
+                        fail(new PSQLException(GT.tr("The authentication type {0} is not supported.", areq), PSQLState.CONNECTION_REJECTED));
+                }
+                break;
+
+            case 'E':  // Error Response
+                ServerErrorMessage errorMsg = new ServerErrorMessage(input.ReceiveString(len - 4), 0);
+                fail(new PSQLException(errorMsg));
+                break;
+
+            case 'Z':  // Ready For Query
+                input.ReceiveChar();
+                ready = true;
+                connected.complete(this);
+
+                Request request;
+                while ((request = waiting.poll()) != null)
+                    send(request);
+                break;
+
+            case 'S':  // Parameter Status
+            case 'K':  // Backend Key Data
+            case 'N':  // Notice Response
+                input.Skip(len - 4);
+                break;
+
+            default:
+                throw new IOException("Unexpected packet type during startup: " + c);
+        }
+    }
+
+    private void send(Request request) {
+        byte[] data = request.sql.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer message = ByteBuffer.allocate(1 + 4 + data.length + 1);
+        message.put((byte) 'Q').putInt(4 + data.length + 1).put(data).put((byte) 0).flip();
+
+        inFlight.add(request);
+        try
+        {
+            write(message);
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+    }
+
+    private void write(ByteBuffer message) throws IOException {
+        writeQueue.add(message);
+        if (writeQueue.size() == 1)
+            flush();
+    }
+
+    private void flush() throws IOException {
+        ByteBuffer head;
+        while ((head = writeQueue.peek()) != null)
+        {
+            channel.write(head);
+            if (head.hasRemaining())
+            {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            writeQueue.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private ByteBuffer startupMessage() {
+        ByteArrayOutputStream params = new ByteArrayOutputStream();
+        addParam(params, "user", user);
+        addParam(params, "database", database);
+        addParam(params, "client_encoding", "UTF8");
+        addParam(params, "DateStyle", "ISO");
+        params.write(0);
+
+        ByteBuffer message = ByteBuffer.allocate(8 + params.size());
+        message.putInt(8 + params.size()).putInt(PROTOCOL_VERSION_3).put(params.toByteArray()).flip();
+        return message;
+    }
+
+    private static void addParam(ByteArrayOutputStream out, String name, String value) {
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        byte[] v = value.getBytes(StandardCharsets.UTF_8);
+        out.write(n, 0, n.length);
+        out.write(0);
+        out.write(v, 0, v.length);
+        out.write(0);
+    }
+
+    private static ByteBuffer passwordMessage(String password) {
+        byte[] data = password.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer message = ByteBuffer.allocate(1 + 4 + data.length + 1);
+        message.put((byte) 'p').putInt(4 + data.length + 1).put(data).put((byte) 0).flip();
+        return message;
+    }
+
+    private String md5Password(byte[] salt) throws IOException {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(password.getBytes(StandardCharsets.UTF_8));
+            md.update(user.getBytes(StandardCharsets.UTF_8));
+            byte[] inner = hex(md.digest()).getBytes(StandardCharsets.US_ASCII);
+
+            md.update(inner);
+            md.update(salt);
+            return "md5" + hex(md.digest());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("MD5 not available", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    private static final class Request {
+        final String sql;
+        final ResultHandler handler;
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        Request(String sql, ResultHandler handler) {
+            this.sql = sql;
+            this.handler = handler;
+        }
+    }
+}
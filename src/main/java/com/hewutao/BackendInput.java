@@ -0,0 +1,30 @@
+package com.hewutao;
+
+import org.postgresql.core.Encoding;
+
+import java.io.IOException;
+
+/**
+ * The receive side of a backend connection, as used by
+ * {@link QueryExecutorWrapper#processResults}. Method names and semantics
+ * follow {@link org.postgresql.core.PGStream}.
+ */
+public interface BackendInput {
+    Encoding getEncoding();
+
+    int ReceiveChar() throws IOException;
+
+    int ReceiveInteger4() throws IOException;
+
+    int ReceiveInteger2() throws IOException;
+
+    String ReceiveString(int len) throws IOException;
+
+    String ReceiveString() throws IOException;
+
+    byte[][] ReceiveTupleV3() throws IOException, OutOfMemoryError;
+
+    byte[] Receive(int len) throws IOException;
+
+    void Skip(int len) throws IOException;
+}
@@ -0,0 +1,56 @@
+package com.hewutao;
+
+import org.postgresql.core.Field;
+import org.postgresql.core.Query;
+import org.postgresql.core.ResultCursor;
+import org.postgresql.core.ResultHandler;
+
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records handler callbacks so they can be delivered to another handler
+ * later, for example once it is known which of several attempts to keep.
+ */
+public class BufferingResultHandler implements ResultHandler {
+    private interface Event {
+        void deliver(ResultHandler handler);
+    }
+
+    private final List<Event> events = new ArrayList<Event>();
+
+    @Override
+    public void handleResultRows(Query fromQuery, Field[] fields, List tuples, ResultCursor cursor) {
+        events.add(h -> h.handleResultRows(fromQuery, fields, tuples, cursor));
+    }
+
+    @Override
+    public void handleCommandStatus(String status, int updateCount, long insertOID) {
+        events.add(h -> h.handleCommandStatus(status, updateCount, insertOID));
+    }
+
+    @Override
+    public void handleWarning(SQLWarning warning) {
+        events.add(h -> h.handleWarning(warning));
+    }
+
+    @Override
+    public void handleError(SQLException newError) {
+        events.add(h -> h.handleError(newError));
+    }
+
+    @Override
+    public void handleCompletion() {
+    }
+
+    /**
+     * Deliver the recorded callbacks, in order. Does not call
+     * {@link ResultHandler#handleCompletion()} on the target.
+     */
+    public void replayTo(ResultHandler handler) {
+        for (Event event : events)
+            event.deliver(handler);
+    }
+}
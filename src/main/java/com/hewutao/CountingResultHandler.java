@@ -0,0 +1,59 @@
+package com.hewutao;
+
+import org.postgresql.core.Field;
+import org.postgresql.core.Query;
+import org.postgresql.core.ResultCursor;
+import org.postgresql.core.ResultHandler;
+
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.util.List;
+
+/**
+ * Discards results, only counting rows, statements and errors. Reusable
+ * after {@link #handleCompletion()}.
+ */
+public class CountingResultHandler implements ResultHandler {
+    private SQLException error;
+    private long rows;
+    private long statements;
+
+    @Override
+    public void handleResultRows(Query fromQuery, Field[] fields, List tuples, ResultCursor cursor) {
+        rows += tuples.size();
+        statements++;
+    }
+
+    @Override
+    public void handleCommandStatus(String status, int updateCount, long insertOID) {
+        statements++;
+    }
+
+    @Override
+    public void handleWarning(SQLWarning warning) {
+    }
+
+    @Override
+    public void handleError(SQLException newError) {
+        if (error == null)
+            error = newError;
+        else
+            error.setNextException(newError);
+    }
+
+    @Override
+    public void handleCompletion() throws SQLException {
+        SQLException e = error;
+        error = null;
+        if (e != null)
+            throw e;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getStatements() {
+        return statements;
+    }
+}
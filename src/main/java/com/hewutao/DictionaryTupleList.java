@@ -0,0 +1,303 @@
+package com.hewutao;
+
+import org.postgresql.core.Field;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Column oriented tuple buffer which dictionary-encodes low-cardinality text
+ * columns.
+ *
+ * Each text column starts out storing an int code per row that refers to a
+ * single shared copy of every distinct value. When a column sees more than
+ * {@code maxDistinctValues} distinct values it is converted to plain per-row
+ * storage. Rows are rebuilt as {@code byte[][]} only when they are read, so
+ * {@link ResultSetImpl} can use the list in place of the usual {@code ArrayList}.
+ *
+ * Values of encoded columns are shared between rows and must not be modified.
+ */
+public class DictionaryTupleList extends AbstractList<byte[][]> {
+    /**
+     * Upper bound for {@code maxDistinctValues}; larger values are capped.
+     */
+    public static final int MAX_DISTINCT_VALUES = 1 << 16;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Column[] columns;
+    private final BitSet nullRows = new BitSet();
+    private int size;
+    private int capacity = INITIAL_CAPACITY;
+
+    public DictionaryTupleList(Field[] fields, int maxDistinctValues) {
+        maxDistinctValues = checkMaxDistinctValues(maxDistinctValues);
+        columns = new Column[fields.length];
+        for (int i = 0; i < fields.length; i++)
+        {
+            if (fields[i].getFormat() == Field.TEXT_FORMAT && maxDistinctValues > 0)
+                columns[i] = new Column(maxDistinctValues, capacity);
+            else
+                columns[i] = new Column(capacity);
+        }
+    }
+
+    @Override
+    public byte[][] get(int index) {
+        checkIndex(index);
+        if (nullRows.get(index))
+            return null;
+
+        byte[][] tuple = new byte[columns.length][];
+        for (int i = 0; i < columns.length; i++)
+            tuple[i] = columns[i].get(index);
+        return tuple;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean add(byte[][] tuple) {
+        if (size == capacity)
+            grow();
+
+        store(size, tuple);
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public byte[][] set(int index, byte[][] tuple) {
+        byte[][] previous = get(index);
+        store(index, tuple);
+        return previous;
+    }
+
+    @Override
+    public byte[][] remove(int index) {
+        byte[][] previous = get(index);
+        for (Column column : columns)
+            column.remove(index, size);
+
+        for (int i = index; i < size - 1; i++)
+            nullRows.set(i, nullRows.get(i + 1));
+        nullRows.clear(size - 1);
+
+        size--;
+        modCount++;
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        for (Column column : columns)
+            column.clear(INITIAL_CAPACITY);
+        nullRows.clear();
+        size = 0;
+        capacity = INITIAL_CAPACITY;
+        modCount++;
+    }
+
+    /**
+     * @return the number of columns currently held in dictionary form
+     */
+    public int getEncodedColumnCount() {
+        int count = 0;
+        for (Column column : columns)
+            if (column.codes != null)
+                count++;
+        return count;
+    }
+
+    /**
+     * @return the argument, capped at {@link #MAX_DISTINCT_VALUES}
+     * @throws IllegalArgumentException if it is negative
+     */
+    static int checkMaxDistinctValues(int maxDistinctValues) {
+        if (maxDistinctValues < 0)
+            throw new IllegalArgumentException("maxDistinctValues must not be negative: " + maxDistinctValues);
+        return Math.min(maxDistinctValues, MAX_DISTINCT_VALUES);
+    }
+
+    private void store(int index, byte[][] tuple) {
+        if (tuple == null)
+        {
+            nullRows.set(index);
+            for (Column column : columns)
+                column.set(index, null);
+            return;
+        }
+
+        nullRows.clear(index);
+        for (int i = 0; i < columns.length; i++)
+            columns[i].set(index, tuple[i]);
+    }
+
+    private void grow() {
+        capacity = capacity * 2;
+        for (Column column : columns)
+            column.grow(capacity);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    private static final class Column {
+        private static final int NULL_CODE = -1;
+
+        private final int maxDistinctValues;
+
+        // dictionary form: codes[row] indexes into dictionary, hash holds code + 1
+        // and grows with the dictionary, staying at most half full
+        private int[] codes;
+        private byte[][] dictionary;
+        private int dictionarySize;
+        private int[] hash;
+
+        // plain form
+        private byte[][] values;
+
+        Column(int capacity) {
+            this.maxDistinctValues = 0;
+            this.values = new byte[capacity][];
+        }
+
+        Column(int maxDistinctValues, int capacity) {
+            this.maxDistinctValues = maxDistinctValues;
+            this.codes = new int[capacity];
+            this.dictionary = new byte[Math.min(maxDistinctValues, INITIAL_CAPACITY)][];
+            this.hash = new int[INITIAL_CAPACITY];
+        }
+
+        byte[] get(int row) {
+            if (codes == null)
+                return values[row];
+
+            int code = codes[row];
+            return code == NULL_CODE ? null : dictionary[code];
+        }
+
+        void set(int row, byte[] value) {
+            if (codes == null)
+            {
+                values[row] = value;
+                return;
+            }
+
+            if (value == null)
+            {
+                codes[row] = NULL_CODE;
+                return;
+            }
+
+            int code = lookup(value);
+            if (code < 0)
+            {
+                if (dictionarySize == maxDistinctValues)
+                {
+                    // too many distinct values, fall back to plain storage
+                    inflate();
+                    values[row] = value;
+                    return;
+                }
+                code = insert(value);
+            }
+            codes[row] = code;
+        }
+
+        void remove(int row, int size) {
+            if (codes == null)
+            {
+                System.arraycopy(values, row + 1, values, row, size - row - 1);
+                values[size - 1] = null;
+            }
+            else
+            {
+                System.arraycopy(codes, row + 1, codes, row, size - row - 1);
+            }
+        }
+
+        void grow(int capacity) {
+            if (codes == null)
+                values = Arrays.copyOf(values, capacity);
+            else
+                codes = Arrays.copyOf(codes, capacity);
+        }
+
+        void clear(int capacity) {
+            if (maxDistinctValues > 0)
+            {
+                values = null;
+                codes = new int[capacity];
+                dictionary = new byte[Math.min(maxDistinctValues, INITIAL_CAPACITY)][];
+                dictionarySize = 0;
+                hash = new int[INITIAL_CAPACITY];
+            }
+            else
+            {
+                values = new byte[capacity][];
+            }
+        }
+
+        private int lookup(byte[] value) {
+            int mask = hash.length - 1;
+            for (int slot = Arrays.hashCode(value) & mask; ; slot = (slot + 1) & mask)
+            {
+                int entry = hash[slot];
+                if (entry == 0)
+                    return -1;
+                if (Arrays.equals(dictionary[entry - 1], value))
+                    return entry - 1;
+            }
+        }
+
+        private int insert(byte[] value) {
+            if (dictionarySize == dictionary.length)
+                dictionary = Arrays.copyOf(dictionary, Math.min(maxDistinctValues, dictionary.length * 2));
+
+            int code = dictionarySize++;
+            dictionary[code] = value;
+
+            if (dictionarySize * 2 > hash.length)
+                rehash(hash.length * 2);
+            else
+                hashInsert(code);
+
+            return code;
+        }
+
+        private void rehash(int tableSize) {
+            hash = new int[tableSize];
+            for (int code = 0; code < dictionarySize; code++)
+                hashInsert(code);
+        }
+
+        private void hashInsert(int code) {
+            int mask = hash.length - 1;
+            int slot = Arrays.hashCode(dictionary[code]) & mask;
+            while (hash[slot] != 0)
+                slot = (slot + 1) & mask;
+            hash[slot] = code + 1;
+        }
+
+        private void inflate() {
+            values = new byte[codes.length][];
+            for (int row = 0; row < codes.length; row++)
+            {
+                int code = codes[row];
+                values[row] = code == NULL_CODE ? null : dictionary[code];
+            }
+
+            codes = null;
+            dictionary = null;
+            hash = null;
+        }
+    }
+}
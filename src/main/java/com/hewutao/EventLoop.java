@@ -0,0 +1,160 @@
+package com.hewutao;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread multiplexing many {@link AsyncConnection}s over a
+ * {@link Selector}.
+ *
+ * All connection state is touched only from the loop thread; other threads
+ * hand work over with {@link #execute}. To use a few threads, create a few
+ * loops and spread connections across them.
+ */
+public class EventLoop implements Closeable {
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean running = true;
+
+    public EventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Open a connection and log in. The future completes once the server is
+     * ready for queries. Only trust, password and md5 authentication are
+     * supported.
+     */
+    public CompletableFuture<AsyncConnection> connect(String host, int port, String database, String user, String password) {
+        AsyncConnection conn = new AsyncConnection(this, database, user, password);
+        execute(() -> {
+            try
+            {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                conn.attach(channel, channel.register(selector, SelectionKey.OP_CONNECT, conn));
+
+                boolean connected = channel.connect(new InetSocketAddress(host, port));
+                // local connections may be established at once, and then OP_CONNECT never fires
+                if (connected)
+                    conn.onConnectable();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // e.g. UnresolvedAddressException
+                conn.fail(e);
+            }
+        });
+        return conn.connected();
+    }
+
+    /**
+     * Run a task on the loop thread.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Stop the loop, failing whatever is still pending on its connections.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+        {
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException e)
+            {
+                // one failed task must not stop the loop for every other connection
+            }
+        }
+    }
+
+    private void run() {
+        while (running)
+        {
+            try
+            {
+                selector.select();
+            }
+            catch (IOException e)
+            {
+                break;
+            }
+
+            runTasks();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext())
+            {
+                SelectionKey key = it.next();
+                it.remove();
+
+                AsyncConnection conn = (AsyncConnection) key.attachment();
+                try
+                {
+                    if (!key.isValid())
+                        continue;
+                    if (key.isConnectable())
+                        conn.onConnectable();
+                    if (key.isValid() && key.isReadable())
+                        conn.onReadable();
+                    if (key.isValid() && key.isWritable())
+                        conn.onWritable();
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    conn.fail(e);
+                }
+            }
+        }
+
+        runTasks();
+
+        for (SelectionKey key : selector.keys())
+            ((AsyncConnection) key.attachment()).fail(new ClosedChannelException());
+        try
+        {
+            selector.close();
+        }
+        catch (IOException e)
+        {
+            // nothing left to clean up
+        }
+    }
+}
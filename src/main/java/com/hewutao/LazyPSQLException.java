@@ -0,0 +1,52 @@
+package com.hewutao;
+
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.PSQLState;
+import org.postgresql.util.ServerErrorMessage;
+
+/**
+ * A server error that keeps the raw ErrorResponse and only decodes it on
+ * demand. {@link #getSQLState()} does not need the full decode.
+ */
+public class LazyPSQLException extends PSQLException {
+    private final RawServerMessage raw;
+
+    public LazyPSQLException(RawServerMessage raw) {
+        super((String) null, (PSQLState) null);
+        this.raw = raw;
+    }
+
+    public RawServerMessage getRawMessage() {
+        return raw;
+    }
+
+    @Override
+    public String getMessage() {
+        return raw.toServerErrorMessage().toString();
+    }
+
+    @Override
+    public String getSQLState() {
+        return raw.getSQLState();
+    }
+
+    @Override
+    public ServerErrorMessage getServerErrorMessage() {
+        return raw.toServerErrorMessage();
+    }
+
+    /**
+     * Skips capturing a stack trace, which costs more than the rest of
+     * creating the exception and says nothing about a server-side error.
+     */
+    public static class Stackless extends LazyPSQLException {
+        public Stackless(RawServerMessage raw) {
+            super(raw);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
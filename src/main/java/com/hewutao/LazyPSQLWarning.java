@@ -0,0 +1,52 @@
+package com.hewutao;
+
+import org.postgresql.util.PSQLWarning;
+import org.postgresql.util.ServerErrorMessage;
+
+/**
+ * A server notice that keeps the raw NoticeResponse and only decodes it on
+ * demand.
+ */
+public class LazyPSQLWarning extends PSQLWarning {
+    private final RawServerMessage raw;
+
+    public LazyPSQLWarning(RawServerMessage raw) {
+        super(null);
+        this.raw = raw;
+    }
+
+    public RawServerMessage getRawMessage() {
+        return raw;
+    }
+
+    @Override
+    public String toString() {
+        return raw.toServerErrorMessage().toString();
+    }
+
+    @Override
+    public String getMessage() {
+        return raw.toServerErrorMessage().getMessage();
+    }
+
+    @Override
+    public String getSQLState() {
+        return raw.getSQLState();
+    }
+
+    @Override
+    public ServerErrorMessage getServerErrorMessage() {
+        return raw.toServerErrorMessage();
+    }
+
+    public static class Stackless extends LazyPSQLWarning {
+        public Stackless(RawServerMessage raw) {
+            super(raw);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
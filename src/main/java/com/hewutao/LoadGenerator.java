@@ -0,0 +1,289 @@
+package com.hewutao;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a SQL workload through {@link QueryExecutorWrapper} from a number of
+ * connections and reports latency percentiles and throughput.
+ *
+ * With a target rate the load is open-loop: each request has an intended start
+ * time on a fixed schedule and its latency is measured from that time, so a
+ * stalled server shows up as queueing delay instead of silently lowering the
+ * offered load (coordinated omission). Without a rate every connection issues
+ * its next request as soon as the previous one completes.
+ */
+public class LoadGenerator {
+    private final String url;
+    private final String user;
+    private final String password;
+    private final List<String> workload;
+
+    private int concurrency = 1;
+    private double rate;
+    private long durationNanos = TimeUnit.SECONDS.toNanos(10);
+    private long warmupNanos;
+    private final List<String> replicaUrls = new ArrayList<String>();
+    private long hedgeDelayNanos;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile SQLException firstError;
+
+    public LoadGenerator(String url, String user, String password, List<String> workload) {
+        if (workload.isEmpty())
+            throw new IllegalArgumentException("empty workload");
+
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.workload = workload;
+    }
+
+    /**
+     * Read a workload file. Each non-empty line that is not a {@code --}
+     * comment is one request, which may itself hold several statements.
+     */
+    public static List<String> readWorkload(String path) throws IOException {
+        List<String> statements = new ArrayList<String>();
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8))
+        {
+            String sql = line.trim();
+            if (!sql.isEmpty() && !sql.startsWith("--"))
+                statements.add(sql);
+        }
+        return statements;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @param rate requests per second over all connections, or 0 for closed-loop
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public void setDuration(long duration, TimeUnit unit) {
+        this.durationNanos = unit.toNanos(duration);
+    }
+
+    public void setWarmup(long warmup, TimeUnit unit) {
+        this.warmupNanos = unit.toNanos(warmup);
+    }
+
+    /**
+     * Send read-only requests to a replica at the given url through a
+     * {@link ReadRouter}, with the main url as the primary.
+     */
+    public void addReplica(String replicaUrl) {
+        replicaUrls.add(replicaUrl);
+    }
+
+    public void setHedgeDelay(long delay, TimeUnit unit) {
+        this.hedgeDelayNanos = unit.toNanos(delay);
+    }
+
+    public void run(PrintStream out) throws Exception {
+        List<Connection> connections = new ArrayList<Connection>();
+        List<Worker> workers = new ArrayList<Worker>();
+        ReadRouter router = null;
+        try {
+            List<QueryExecutorWrapper> primary = connect(url, connections);
+            if (!replicaUrls.isEmpty())
+            {
+                router = new ReadRouter(new ReadRouter.Endpoint(url, primary));
+                for (String replicaUrl : replicaUrls)
+                    router.addReplica(new ReadRouter.Endpoint(replicaUrl, connect(replicaUrl, connections)));
+                router.setHedgeDelay(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+            }
+
+            for (int i = 0; i < concurrency; i++)
+                workers.add(new Worker(primary.get(i), router));
+
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            long measureFrom = start + warmupNanos;
+            long end = measureFrom + durationNanos;
+
+            CountDownLatch done = new CountDownLatch(workers.size());
+            for (int i = 0; i < workers.size(); i++)
+            {
+                Worker worker = workers.get(i);
+                Thread t = new Thread(() -> {
+                    try {
+                        worker.run(start, measureFrom, end);
+                    } finally {
+                        done.countDown();
+                    }
+                }, "load-" + i);
+                t.start();
+            }
+            done.await();
+
+            LatencyHistogram total = new LatencyHistogram();
+            long rows = 0;
+            long lastCompletion = measureFrom;
+            long maxLagNanos = 0;
+            for (Worker worker : workers)
+            {
+                if (worker.failure != null)
+                    throw worker.failure;
+                total.add(worker.histogram);
+                rows += worker.handler.getRows() - worker.warmupRows;
+                lastCompletion = Math.max(lastCompletion, worker.lastCompletion);
+                maxLagNanos = Math.max(maxLagNanos, worker.maxLagNanos);
+            }
+
+            report(out, total, rows, lastCompletion - measureFrom, maxLagNanos);
+            if (router != null)
+            {
+                for (ReadRouter.Endpoint replica : router.getReplicas())
+                    out.printf("replica %s: ewma %.1f us%n", replica, replica.getEwmaMicros());
+            }
+        } finally {
+            if (router != null)
+                router.shutdown();
+            for (Connection conn : connections)
+                conn.close();
+        }
+    }
+
+    private List<QueryExecutorWrapper> connect(String url, List<Connection> connections) throws Exception {
+        List<QueryExecutorWrapper> wrappers = new ArrayList<QueryExecutorWrapper>();
+        for (int i = 0; i < concurrency; i++)
+        {
+            Connection conn = DriverManager.getConnection(url, user, password);
+            connections.add(conn);
+            Statement stat = conn.createStatement();
+            wrappers.add(new QueryExecutorWrapper(conn, stat));
+        }
+        return wrappers;
+    }
+
+    /**
+     * @param elapsedNanos from the end of warmup to the last measured completion,
+     *        which in open-loop mode can run well past the configured duration
+     *        when the server cannot keep up
+     * @param maxLagNanos how late the most delayed request was sent
+     */
+    private void report(PrintStream out, LatencyHistogram h, long rows, long elapsedNanos, long maxLagNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        out.printf("requests:   %d (%d errors)%n", h.getTotalCount(), errors.get());
+        out.printf("elapsed:    %.2f s (duration %.2f s)%n", seconds, durationNanos / 1e9);
+        out.printf("throughput: %.1f req/s, %.1f rows/s%n", h.getTotalCount() / seconds, rows / seconds);
+        if (rate > 0)
+        {
+            out.printf("target:     %.1f req/s (open-loop)%n", rate);
+            out.printf("schedule:   fell behind by up to %.1f ms%n", maxLagNanos / 1e6);
+        }
+        out.printf("latency (us): min %d, mean %.1f, max %d%n", h.getMin(), h.getMean(), h.getMax());
+        for (double p : new double[] {50, 90, 99, 99.9, 99.99})
+            out.printf("  p%-6s %d%n", p, h.getValueAtPercentile(p));
+        if (firstError != null)
+            out.println("first error: " + firstError.getMessage());
+    }
+
+    private final class Worker {
+        private final QueryExecutorWrapper wrapper;
+        private final ReadRouter router;
+        private final CountingResultHandler handler = new CountingResultHandler();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private Exception failure;
+        // rows received before the first measured request
+        private long warmupRows;
+        private long lastCompletion;
+        private long maxLagNanos;
+
+        Worker(QueryExecutorWrapper wrapper, ReadRouter router) {
+            this.wrapper = wrapper;
+            this.router = router;
+        }
+
+        void run(long start, long measureFrom, long end) {
+            long intervalNanos = rate > 0 ? (long) (1e9 / rate) : 0;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            boolean measuring = false;
+
+            try {
+                while (true)
+                {
+                    long intended;
+                    if (intervalNanos > 0)
+                    {
+                        intended = start + sequence.getAndIncrement() * intervalNanos;
+                        if (intended >= end)
+                            break;
+                        sleepUntil(intended);
+                    }
+                    else
+                    {
+                        intended = System.nanoTime();
+                        if (intended >= end)
+                            break;
+                    }
+
+                    if (intended >= measureFrom && !measuring)
+                    {
+                        measuring = true;
+                        warmupRows = handler.getRows();
+                    }
+                    if (measuring)
+                        maxLagNanos = Math.max(maxLagNanos, System.nanoTime() - intended);
+
+                    String sql = workload.get(random.nextInt(workload.size()));
+                    if (router != null)
+                    {
+                        router.execute(sql, handler);
+                    }
+                    else
+                    {
+                        wrapper.sendSimpleQuery(sql);
+                        wrapper.processResults(handler, 0);
+                    }
+                    try {
+                        handler.handleCompletion();
+                    } catch (SQLException e) {
+                        if (measuring && errors.getAndIncrement() == 0)
+                            firstError = e;
+                    }
+
+                    if (measuring)
+                    {
+                        lastCompletion = System.nanoTime();
+                        histogram.record(TimeUnit.NANOSECONDS.toMicros(lastCompletion - intended));
+                    }
+                }
+                if (!measuring)
+                    warmupRows = handler.getRows();
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        private void sleepUntil(long deadline) throws InterruptedException {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0)
+            {
+                if (remaining > TimeUnit.MICROSECONDS.toNanos(200))
+                    TimeUnit.NANOSECONDS.sleep(remaining - TimeUnit.MICROSECONDS.toNanos(100));
+                else
+                    Thread.yield();
+            }
+        }
+    }
+}
@@ -1,32 +1,68 @@
 package com.hewutao;
 
-import org.postgresql.core.ResultHandler;
-
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.Statement;
-import java.util.UUID;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Command line entry point for {@link LoadGenerator}.
+ *
+ * <pre>
+ * java com.hewutao.Main --url jdbc:postgresql://localhost:5432/postgres --user u --password p \
+ *     --workload queries.sql --concurrency 16 --rate 2000 --duration 60 --warmup 10
+ * </pre>
+ */
 public class Main {
 
+    private static final String USAGE =
+            "usage: Main --url <jdbc url> [--user <user>] [--password <password>]\n" +
+            "            (--workload <file> | --sql <statement>)\n" +
+            "            [--concurrency <connections>] [--rate <requests/s, 0 = closed-loop>]\n" +
+            "            [--duration <seconds>] [--warmup <seconds>]\n" +
+            "            [--replicas <jdbc url>,...] [--hedge-ms <milliseconds>]";
+
     public static void main(String[] args) throws Exception {
-        String url = "jdbc:postgresql://xx.xx.xx.xx:5432/postgres";
-        String user = "xxx";
-        String password = "xxxx";
-        try (Connection conn = DriverManager.getConnection(url, user, password)) {
+        Map<String, String> options = parseOptions(args);
+        if (options == null || !options.containsKey("url")
+                || options.containsKey("workload") == options.containsKey("sql")) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
 
-            try (Statement stat = conn.createStatement()) {
-                String sql = "select * from person_tbl; \ninsert into person_tbl values ('" + UUID.randomUUID().toString() + "', 'hwt'); drop table if exists test_xxx;";
+        List<String> workload = options.containsKey("workload")
+                ? LoadGenerator.readWorkload(options.get("workload"))
+                : Collections.singletonList(options.get("sql"));
 
-                QueryExecutorWrapper wrapper = new QueryExecutorWrapper(conn, stat);
-                wrapper.sendSimpleQuery(sql);
+        LoadGenerator generator = new LoadGenerator(options.get("url"), options.get("user"), options.get("password"), workload);
+        generator.setConcurrency(Integer.parseInt(get(options, "concurrency", "1")));
+        generator.setRate(Double.parseDouble(get(options, "rate", "0")));
+        generator.setDuration(Long.parseLong(get(options, "duration", "10")), TimeUnit.SECONDS);
+        generator.setWarmup(Long.parseLong(get(options, "warmup", "0")), TimeUnit.SECONDS);
 
-                ResultHandler handler = new PrintResultHandler(sql, stat);
+        if (options.containsKey("replicas")) {
+            for (String replica : options.get("replicas").split(","))
+                generator.addReplica(replica.trim());
+        }
+        generator.setHedgeDelay(Long.parseLong(get(options, "hedge-ms", "0")), TimeUnit.MILLISECONDS);
 
-                wrapper.processResults(handler, 0);
+        generator.run(System.out);
+    }
 
-                handler.handleCompletion();
-            }
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i += 2)
+        {
+            if (!args[i].startsWith("--") || i + 1 == args.length)
+                return null;
+            options.put(args[i].substring(2), args[i + 1]);
         }
+        return options;
+    }
+
+    private static String get(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
     }
-}
\ No newline at end of file
+}
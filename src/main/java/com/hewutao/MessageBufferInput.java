@@ -0,0 +1,144 @@
+package com.hewutao;
+
+import org.postgresql.core.Encoding;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Parses backend messages out of a {@link ByteBuffer} instead of a socket.
+ * Subclasses supply the bytes through {@link #fill()}.
+ */
+public abstract class MessageBufferInput implements BackendInput {
+    protected final Encoding encoding;
+    protected ByteBuffer buffer;
+
+    protected MessageBufferInput(Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * Called when {@link #buffer} is exhausted. Replace it with the next chunk
+     * of input, which must start on a message boundary.
+     *
+     * @return false at end of input
+     */
+    protected abstract boolean fill() throws IOException;
+
+    @Override
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    @Override
+    public int ReceiveChar() throws IOException {
+        require(1);
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int ReceiveInteger4() throws IOException {
+        require(4);
+        return buffer.getInt();
+    }
+
+    @Override
+    public int ReceiveInteger2() throws IOException {
+        require(2);
+        return buffer.getShort() & 0xFFFF;
+    }
+
+    @Override
+    public String ReceiveString(int len) throws IOException {
+        require(len);
+        return decode(len);
+    }
+
+    @Override
+    public String ReceiveString() throws IOException {
+        require(1);
+        int end = buffer.position();
+        while (buffer.get(end) != 0)
+        {
+            end++;
+            if (end == buffer.limit())
+                throw new EOFException();
+        }
+
+        String s = decode(end - buffer.position());
+        buffer.get(); // trailing \0
+        return s;
+    }
+
+    @Override
+    public byte[][] ReceiveTupleV3() throws IOException, OutOfMemoryError {
+        // length of message, including the 4 bytes of the length word itself
+        int l_msgSize = ReceiveInteger4();
+        int l_nf = ReceiveInteger2();
+        byte[][] answer = new byte[l_nf][];
+
+        OutOfMemoryError oom = null;
+        for (int i = 0; i < l_nf; ++i)
+        {
+            int l_size = ReceiveInteger4();
+            if (l_size != -1) {
+                require(l_size);
+                try {
+                    answer[i] = new byte[l_size];
+                    buffer.get(answer[i]);
+                } catch(OutOfMemoryError oome) {
+                    oom = oome;
+                    Skip(l_size);
+                }
+            }
+        }
+
+        if (oom != null)
+            throw oom;
+
+        return answer;
+    }
+
+    @Override
+    public byte[] Receive(int len) throws IOException {
+        require(len);
+        byte[] data = new byte[len];
+        buffer.get(data);
+        return data;
+    }
+
+    @Override
+    public void Skip(int len) throws IOException {
+        require(len);
+        buffer.position(buffer.position() + len);
+    }
+
+    private void require(int len) throws IOException {
+        // an empty value at the end of a message must not pull in the next one
+        if (len == 0)
+            return;
+
+        if (buffer == null || !buffer.hasRemaining())
+        {
+            if (!fill())
+                throw new EOFException();
+        }
+
+        if (buffer.remaining() < len)
+            throw new EOFException("message truncated: needed " + len + " bytes, " + buffer.remaining() + " left");
+    }
+
+    private String decode(int len) throws IOException {
+        if (buffer.hasArray())
+        {
+            int offset = buffer.arrayOffset() + buffer.position();
+            buffer.position(buffer.position() + len);
+            return encoding.decode(buffer.array(), offset, len);
+        }
+
+        byte[] data = new byte[len];
+        buffer.get(data);
+        return encoding.decode(data, 0, len);
+    }
+}
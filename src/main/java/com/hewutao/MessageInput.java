@@ -0,0 +1,27 @@
+package com.hewutao;
+
+import org.postgresql.core.Encoding;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a single complete backend message that has already been received,
+ * e.g. by a non-blocking event loop.
+ */
+class MessageInput extends MessageBufferInput {
+    MessageInput(Encoding encoding) {
+        super(encoding);
+    }
+
+    /**
+     * @param message the whole message, starting at its type byte
+     */
+    void setMessage(ByteBuffer message) {
+        this.buffer = message;
+    }
+
+    @Override
+    protected boolean fill() {
+        return false;
+    }
+}
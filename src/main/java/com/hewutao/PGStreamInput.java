@@ -0,0 +1,62 @@
+package com.hewutao;
+
+import org.postgresql.core.Encoding;
+import org.postgresql.core.PGStream;
+
+import java.io.IOException;
+
+/**
+ * Reads straight from the connection's {@link PGStream}.
+ */
+public class PGStreamInput implements BackendInput {
+    private final PGStream pgStream;
+
+    public PGStreamInput(PGStream pgStream) {
+        this.pgStream = pgStream;
+    }
+
+    @Override
+    public Encoding getEncoding() {
+        return pgStream.getEncoding();
+    }
+
+    @Override
+    public int ReceiveChar() throws IOException {
+        return pgStream.ReceiveChar();
+    }
+
+    @Override
+    public int ReceiveInteger4() throws IOException {
+        return pgStream.ReceiveInteger4();
+    }
+
+    @Override
+    public int ReceiveInteger2() throws IOException {
+        return pgStream.ReceiveInteger2();
+    }
+
+    @Override
+    public String ReceiveString(int len) throws IOException {
+        return pgStream.ReceiveString(len);
+    }
+
+    @Override
+    public String ReceiveString() throws IOException {
+        return pgStream.ReceiveString();
+    }
+
+    @Override
+    public byte[][] ReceiveTupleV3() throws IOException, OutOfMemoryError {
+        return pgStream.ReceiveTupleV3();
+    }
+
+    @Override
+    public byte[] Receive(int len) throws IOException {
+        return pgStream.Receive(len);
+    }
+
+    @Override
+    public void Skip(int len) throws IOException {
+        pgStream.Skip(len);
+    }
+}
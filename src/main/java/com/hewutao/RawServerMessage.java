@@ -0,0 +1,78 @@
+package com.hewutao;
+
+import org.postgresql.core.Encoding;
+import org.postgresql.util.ServerErrorMessage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The undecoded body of an ErrorResponse or NoticeResponse.
+ *
+ * Single fields such as the SQLSTATE are read straight from the bytes; the
+ * full {@link ServerErrorMessage} is only built when something asks for it.
+ */
+public final class RawServerMessage {
+    private final Encoding encoding;
+    private final byte[] fields;
+    private volatile ServerErrorMessage parsed;
+
+    public RawServerMessage(Encoding encoding, byte[] fields) {
+        this.encoding = encoding;
+        this.fields = fields;
+    }
+
+    public String getSQLState() {
+        return getField('C');
+    }
+
+    public String getSeverity() {
+        return getField('S');
+    }
+
+    /**
+     * @param type the field type code, e.g. 'C' for the SQLSTATE
+     * @return the field's value, or null if the message does not have it
+     */
+    public String getField(char type) {
+        int i = 0;
+        while (i < fields.length && fields[i] != 0)
+        {
+            int start = i + 1;
+            int end = start;
+            while (end < fields.length && fields[end] != 0)
+                end++;
+
+            if (fields[i] == type)
+                return decode(start, end - start);
+            i = end + 1;
+        }
+        return null;
+    }
+
+    public ServerErrorMessage toServerErrorMessage() {
+        ServerErrorMessage msg = parsed;
+        if (msg == null)
+        {
+            msg = new ServerErrorMessage(decode(0, fields.length), 0);
+            parsed = msg;
+        }
+        return msg;
+    }
+
+    @Override
+    public String toString() {
+        return toServerErrorMessage().toString();
+    }
+
+    private String decode(int offset, int length) {
+        try
+        {
+            return encoding.decode(fields, offset, length);
+        }
+        catch (IOException e)
+        {
+            return new String(fields, offset, length, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.hewutao;
+
+import org.postgresql.core.Field;
+import org.postgresql.core.Query;
+import org.postgresql.core.ResultCursor;
+import org.postgresql.core.ResultHandler;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer/single-consumer ring of preallocated slots carrying result
+ * handler callbacks from a reader thread to the thread running the real
+ * handler.
+ *
+ * The reader thread uses the ring as its {@link StreamingResultHandler}, so
+ * every DataRow becomes one slot. When the ring is full the reader waits,
+ * which in turn stops it reading from the socket and lets TCP flow control
+ * push back on the server.
+ *
+ * A side that has to wait spins briefly, then parks until the other side
+ * publishes or frees a slot and unparks it.
+ */
+class ReadAheadRing implements StreamingResultHandler {
+    private static final int ROW_DESCRIPTION = 1;
+    private static final int ROW = 2;
+    private static final int RESULT_ROWS = 3;
+    private static final int COMMAND_STATUS = 4;
+    private static final int WARNING = 5;
+    private static final int ERROR = 6;
+    private static final int END = 7;
+
+    // busy-wait iterations, half of them yielding, before a side parks
+    private static final int SPIN_LIMIT = 200;
+
+    private final Slot[] slots;
+    private final int mask;
+
+    // next sequence to consume / to publish
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // each side's last seen value of the other side's counter
+    private long producerCachedHead;
+    private long consumerCachedTail;
+    // set by a side before it parks, so the other side knows to unpark it
+    private volatile Thread parkedProducer;
+    private volatile Thread parkedConsumer;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    ReadAheadRing(int capacity) {
+        int size = 2;
+        while (size < capacity)
+            size <<= 1;
+
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++)
+            slots[i] = new Slot();
+        mask = size - 1;
+    }
+
+    // producer side, called on the reader thread
+
+    @Override
+    public void handleRowDescription(Field[] fields) {
+        Slot slot = claim();
+        slot.type = ROW_DESCRIPTION;
+        slot.fields = fields;
+        publish();
+    }
+
+    @Override
+    public void handleRow(byte[][] tuple) {
+        Slot slot = claim();
+        slot.type = ROW;
+        slot.tuple = tuple;
+        publish();
+    }
+
+    @Override
+    public void handleResultRows(Query fromQuery, Field[] fields, List tuples, ResultCursor cursor) {
+        Slot slot = claim();
+        slot.type = RESULT_ROWS;
+        slot.query = fromQuery;
+        slot.fields = fields;
+        slot.cursor = cursor;
+        publish();
+    }
+
+    @Override
+    public void handleCommandStatus(String status, int updateCount, long insertOID) {
+        Slot slot = claim();
+        slot.type = COMMAND_STATUS;
+        slot.status = status;
+        slot.updateCount = updateCount;
+        slot.insertOID = insertOID;
+        publish();
+    }
+
+    @Override
+    public void handleWarning(SQLWarning warning) {
+        Slot slot = claim();
+        slot.type = WARNING;
+        slot.warning = warning;
+        publish();
+    }
+
+    @Override
+    public void handleError(SQLException newError) {
+        Slot slot = claim();
+        slot.type = ERROR;
+        slot.error = newError;
+        publish();
+    }
+
+    @Override
+    public void handleCompletion() {
+    }
+
+    /**
+     * Mark the end of the query's responses.
+     *
+     * @param failure what stopped the reader early, or null after ReadyForQuery
+     */
+    void end(Throwable failure) {
+        Slot slot = claim();
+        slot.type = END;
+        slot.failure = failure;
+        publish();
+    }
+
+    private Slot claim() {
+        long t = tail.get();
+        for (int idle = 0; t - producerCachedHead >= slots.length; idle++)
+        {
+            producerCachedHead = head.get();
+            if (t - producerCachedHead < slots.length)
+                break;
+
+            if (idle < SPIN_LIMIT)
+            {
+                backoff(idle);
+            }
+            else
+            {
+                parkedProducer = Thread.currentThread();
+                if (t - head.get() >= slots.length)
+                    LockSupport.park(this);
+                parkedProducer = null;
+            }
+        }
+        return slots[(int) t & mask];
+    }
+
+    private void publish() {
+        // a volatile store, so the check below cannot be reordered before it
+        tail.set(tail.get() + 1);
+        Thread consumer = parkedConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+    }
+
+    // consumer side
+
+    /**
+     * Deliver callbacks to the handler until the reader signals the end.
+     * Rows for a handler that is not a {@link StreamingResultHandler} are
+     * collected into the list supplied by {@code tupleLists}.
+     */
+    void drainTo(ResultHandler handler, TupleListFactory tupleLists) throws IOException {
+        StreamingResultHandler streamingHandler = handler instanceof StreamingResultHandler ? (StreamingResultHandler) handler : null;
+        List tuples = null;
+        Throwable handlerFailure = null;
+
+        while (true)
+        {
+            long h = head.get();
+            for (int idle = 0; h >= consumerCachedTail; idle++)
+            {
+                consumerCachedTail = tail.get();
+                if (h < consumerCachedTail)
+                    break;
+
+                if (idle < SPIN_LIMIT)
+                {
+                    backoff(idle);
+                }
+                else
+                {
+                    parkedConsumer = Thread.currentThread();
+                    if (h >= tail.get())
+                        LockSupport.park(this);
+                    parkedConsumer = null;
+                }
+            }
+
+            Slot slot = slots[(int) h & mask];
+            int type = slot.type;
+            Throwable failure = slot.failure;
+
+            // after a handler failure, Errors included, keep draining so the
+            // reader can finish the query instead of blocking on a full ring
+            if (type != END && handlerFailure == null)
+            {
+                try
+                {
+                    switch (type)
+                    {
+                        case ROW_DESCRIPTION:
+                            if (streamingHandler != null)
+                                streamingHandler.handleRowDescription(slot.fields);
+                            else
+                                tuples = tupleLists.newTupleList(slot.fields);
+                            break;
+                        case ROW:
+                            if (streamingHandler != null)
+                                streamingHandler.handleRow(slot.tuple);
+                            else
+                                tuples.add(slot.tuple);
+                            break;
+                        case RESULT_ROWS:
+                            handler.handleResultRows(slot.query, slot.fields, tuples != null ? tuples : new ArrayList(), slot.cursor);
+                            tuples = null;
+                            break;
+                        case COMMAND_STATUS:
+                            handler.handleCommandStatus(slot.status, slot.updateCount, slot.insertOID);
+                            break;
+                        case WARNING:
+                            handler.handleWarning(slot.warning);
+                            break;
+                        case ERROR:
+                            handler.handleError(slot.error);
+                            break;
+                    }
+                }
+                catch (Throwable t)
+                {
+                    handlerFailure = t;
+                }
+            }
+
+            slot.clear();
+            head.set(h + 1);
+            Thread producer = parkedProducer;
+            if (producer != null)
+                LockSupport.unpark(producer);
+
+            if (type == END)
+            {
+                if (failure instanceof IOException)
+                    throw (IOException) failure;
+                if (failure instanceof RuntimeException)
+                    throw (RuntimeException) failure;
+                if (failure instanceof Error)
+                    throw (Error) failure;
+                if (handlerFailure instanceof RuntimeException)
+                    throw (RuntimeException) handlerFailure;
+                if (handlerFailure instanceof Error)
+                    throw (Error) handlerFailure;
+                if (handlerFailure != null)
+                    throw new IOException(handlerFailure);
+                return;
+            }
+        }
+    }
+
+    private static void backoff(int idle) {
+        if (idle >= SPIN_LIMIT / 2)
+            Thread.yield();
+    }
+
+    interface TupleListFactory {
+        List newTupleList(Field[] fields);
+    }
+
+    private static final class Slot {
+        int type;
+        Field[] fields;
+        byte[][] tuple;
+        Query query;
+        ResultCursor cursor;
+        String status;
+        int updateCount;
+        long insertOID;
+        SQLWarning warning;
+        SQLException error;
+        Throwable failure;
+
+        void clear() {
+            fields = null;
+            tuple = null;
+            query = null;
+            cursor = null;
+            status = null;
+            warning = null;
+            error = null;
+            failure = null;
+        }
+    }
+}
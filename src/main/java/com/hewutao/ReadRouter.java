@@ -0,0 +1,296 @@
+package com.hewutao;
+
+import org.postgresql.core.ResultHandler;
+import org.postgresql.util.GT;
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.PSQLState;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routes simple queries between a primary and a set of read replicas.
+ *
+ * Queries that {@link StatementClassifier} considers read-only go to the
+ * replica with the lowest expected wait, estimated as the exponentially
+ * weighted moving average of its recent latencies scaled by the number of
+ * requests already in flight on it. Everything else goes to the primary.
+ *
+ * With a hedge delay set, a read that has not completed within the delay is
+ * also sent to the next best replica and the first response wins. The losing
+ * attempt still runs to completion on its connection.
+ *
+ * Handlers implementing {@link StreamingResultHandler} are never hedged, as
+ * that would mean buffering every row of both attempts.
+ *
+ * Each endpoint is a fixed set of connections, each used by one request at a
+ * time. A connection whose exchange fails is closed and dropped; replicas
+ * left without connections are no longer chosen. Statements that belong to an
+ * explicit transaction must be sent with {@link #executeOnPrimary} since the
+ * router keeps no session state.
+ */
+public class ReadRouter {
+    public static final double DEFAULT_EWMA_ALPHA = 0.2;
+
+    private final Endpoint primary;
+    private final List<Endpoint> replicas = new ArrayList<Endpoint>();
+
+    private double ewmaAlpha = DEFAULT_EWMA_ALPHA;
+    private long hedgeDelayNanos;
+    private ExecutorService hedgeExecutor;
+
+    public ReadRouter(Endpoint primary) {
+        this.primary = primary;
+    }
+
+    public void addReplica(Endpoint replica) {
+        replicas.add(replica);
+    }
+
+    public void setEwmaAlpha(double ewmaAlpha) {
+        this.ewmaAlpha = ewmaAlpha;
+    }
+
+    /**
+     * Hedge reads slower than the given delay to a second replica; 0 (the
+     * default) disables hedging.
+     */
+    public synchronized void setHedgeDelay(long delay, TimeUnit unit) {
+        this.hedgeDelayNanos = unit.toNanos(delay);
+        if (hedgeDelayNanos > 0 && hedgeExecutor == null)
+        {
+            hedgeExecutor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "read-router-hedge");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public Endpoint getPrimary() {
+        return primary;
+    }
+
+    public List<Endpoint> getReplicas() {
+        return replicas;
+    }
+
+    public void execute(String sql, ResultHandler handler) throws Exception {
+        if (replicas.isEmpty() || !StatementClassifier.isReadOnly(sql))
+        {
+            primary.execute(sql, handler, ewmaAlpha);
+            return;
+        }
+
+        Endpoint first = choose(null);
+        if (first == null)
+        {
+            primary.execute(sql, handler, ewmaAlpha);
+            return;
+        }
+
+        if (hedgeDelayNanos <= 0 || handler instanceof StreamingResultHandler || choose(first) == null)
+            first.execute(sql, handler, ewmaAlpha);
+        else
+            executeHedged(sql, handler, first);
+    }
+
+    public void executeOnPrimary(String sql, ResultHandler handler) throws Exception {
+        primary.execute(sql, handler, ewmaAlpha);
+    }
+
+    public synchronized void shutdown() {
+        if (hedgeExecutor != null)
+            hedgeExecutor.shutdown();
+    }
+
+    private void executeHedged(String sql, ResultHandler handler, Endpoint first) throws Exception {
+        CompletionService<BufferingResultHandler> attempts = new ExecutorCompletionService<BufferingResultHandler>(hedgeExecutor);
+        attempts.submit(() -> {
+            BufferingResultHandler buffer = new BufferingResultHandler();
+            first.execute(sql, buffer, ewmaAlpha);
+            return buffer;
+        });
+
+        int pending = 1;
+        Future<BufferingResultHandler> done = attempts.poll(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+        if (done == null)
+        {
+            // the other replicas may have lost their connections meanwhile
+            Endpoint second = choose(first);
+            if (second != null)
+            {
+                attempts.submit(() -> {
+                    BufferingResultHandler buffer = new BufferingResultHandler();
+                    second.execute(sql, buffer, ewmaAlpha);
+                    return buffer;
+                });
+                pending++;
+            }
+            done = attempts.take();
+        }
+
+        // fall back to the other attempt if the first one to finish failed
+        while (true)
+        {
+            pending--;
+            try
+            {
+                done.get().replayTo(handler);
+                return;
+            }
+            catch (ExecutionException e)
+            {
+                if (pending == 0)
+                {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : e;
+                }
+            }
+            done = attempts.take();
+        }
+    }
+
+    private Endpoint choose(Endpoint exclude) {
+        Endpoint best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Endpoint replica : replicas)
+        {
+            if (replica == exclude || !replica.isUsable())
+                continue;
+
+            double score = replica.expectedWaitMicros();
+            if (score < bestScore)
+            {
+                best = replica;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * One server, reached through a fixed set of connections.
+     */
+    public static class Endpoint {
+        private final String name;
+        private final BlockingQueue<QueryExecutorWrapper> idle;
+        private final AtomicInteger live;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile double ewmaMicros;
+
+        public Endpoint(String name, List<QueryExecutorWrapper> connections) {
+            if (connections.isEmpty())
+                throw new IllegalArgumentException("no connections for " + name);
+
+            this.name = name;
+            this.idle = new ArrayBlockingQueue<QueryExecutorWrapper>(connections.size(), false, connections);
+            this.live = new AtomicInteger(connections.size());
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        /**
+         * @return false once every connection has been dropped after a failure
+         */
+        public boolean isUsable() {
+            return live.get() > 0;
+        }
+
+        public double getEwmaMicros() {
+            return ewmaMicros;
+        }
+
+        double expectedWaitMicros() {
+            // +1 so endpoints without samples yet still prefer the less busy one
+            return (ewmaMicros + 1) * (inFlight.get() + 1);
+        }
+
+        void execute(String sql, ResultHandler handler, double alpha) throws Exception {
+            inFlight.incrementAndGet();
+            long start = System.nanoTime();
+            QueryExecutorWrapper wrapper = null;
+            boolean completed = false;
+            try
+            {
+                wrapper = take();
+                wrapper.sendSimpleQuery(sql);
+                wrapper.processResults(handler, 0);
+                completed = true;
+            }
+            catch (IOException e)
+            {
+                // count a broken endpoint as very slow so reads move elsewhere
+                record(TimeUnit.SECONDS.toMicros(10), 1.0);
+                throw e;
+            }
+            finally
+            {
+                if (wrapper != null)
+                {
+                    if (completed)
+                        idle.add(wrapper);
+                    else
+                        drop(wrapper);
+                }
+                inFlight.decrementAndGet();
+            }
+
+            record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), alpha);
+        }
+
+        private QueryExecutorWrapper take() throws Exception {
+            while (true)
+            {
+                if (live.get() == 0)
+                    throw new PSQLException(GT.tr("No usable connections left to {0}.", name), PSQLState.CONNECTION_FAILURE);
+
+                QueryExecutorWrapper wrapper = idle.poll(100, TimeUnit.MILLISECONDS);
+                if (wrapper != null)
+                    return wrapper;
+            }
+        }
+
+        /**
+         * The connection may be in the middle of a response, so it is closed
+         * rather than reused.
+         */
+        private void drop(QueryExecutorWrapper wrapper) {
+            live.decrementAndGet();
+            try
+            {
+                wrapper.close();
+            }
+            catch (IOException e)
+            {
+                // dropping it anyway
+            }
+        }
+
+        private synchronized void record(long micros, double alpha) {
+            ewmaMicros = ewmaMicros == 0 ? micros : ewmaMicros + alpha * (micros - ewmaMicros);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
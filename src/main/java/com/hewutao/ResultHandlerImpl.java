@@ -10,12 +10,15 @@ import org.postgresql.jdbc2.ResultWrapper;
 import java.sql.SQLException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.List;
 
 public class ResultHandlerImpl implements ResultHandler {
     private SQLException error;
+    private SQLException lastError;
     private ResultWrapper results;
-    private List<SQLWarning> warnings;
+    private ResultWrapper lastResult;
+    private List<SQLWarning> warnings = new ArrayList<SQLWarning>();
 
     private BaseStatement originalStat;
     private String sql;
@@ -30,10 +33,12 @@ public class ResultHandlerImpl implements ResultHandler {
     }
 
     private void append(ResultWrapper newResult) {
+        // append from the tail; ResultWrapper.append walks the chain from where it is called
         if (results == null)
             results = newResult;
         else
-            results.append(newResult);
+            lastResult.append(newResult);
+        lastResult = newResult;
     }
 
     public void handleResultRows(Query fromQuery, Field[] fields, List tuples, ResultCursor cursor) {
@@ -61,10 +66,15 @@ public class ResultHandlerImpl implements ResultHandler {
     }
 
     public void handleError(SQLException newError) {
+        // chain from the tail; setNextException walks the chain from where it is called
         if (error == null)
             error = newError;
         else
-            error.setNextException(newError);
+            lastError.setNextException(newError);
+
+        lastError = newError;
+        while (lastError.getNextException() != null)
+            lastError = lastError.getNextException();
     }
 
     public void handleCompletion() throws SQLException {
@@ -0,0 +1,345 @@
+package com.hewutao;
+
+import org.postgresql.core.Field;
+import org.postgresql.core.QueryExecutor;
+import org.postgresql.core.ResultHandler;
+import org.postgresql.util.GT;
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.PSQLState;
+import org.postgresql.util.PSQLWarning;
+import org.postgresql.util.ServerErrorMessage;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The state of one simple query's responses, fed one backend message at a
+ * time. {@link QueryExecutorWrapper#processResults} drives it from a blocking
+ * stream; {@link EventLoop} drives it as complete messages arrive.
+ */
+class ResultProcessor {
+    private final BackendInput input;
+    private final ResultHandler handler;
+    private final boolean noResults;
+    private final boolean bothRowsAndStatus;
+    private final StreamingResultHandler streamingHandler;
+    private final RowDescriptionCache rowDescriptionCache;
+    private final int dictionaryMaxDistinctValues;
+    private final ServerMessagePolicy serverMessagePolicy;
+
+    private List tuples;
+    private Field[] fieldsCache;
+    private int noticesSeen;
+    private int noticesDelivered;
+
+    ResultProcessor(BackendInput input, ResultHandler handler, int flags,
+                    RowDescriptionCache rowDescriptionCache, int dictionaryMaxDistinctValues,
+                    ServerMessagePolicy serverMessagePolicy) {
+        this.input = input;
+        this.handler = handler;
+        this.noResults = (flags & QueryExecutor.QUERY_NO_RESULTS) != 0;
+        this.bothRowsAndStatus = (flags & QueryExecutor.QUERY_BOTH_ROWS_AND_STATUS) != 0;
+        this.streamingHandler = handler instanceof StreamingResultHandler ? (StreamingResultHandler) handler : null;
+        this.rowDescriptionCache = rowDescriptionCache;
+        this.dictionaryMaxDistinctValues = dictionaryMaxDistinctValues;
+        this.serverMessagePolicy = serverMessagePolicy;
+    }
+
+    /**
+     * Handle the rest of a message whose type byte has already been read.
+     *
+     * @return true once ReadyForQuery has been received and the query is done
+     */
+    boolean handleMessage(int c) throws IOException {
+        switch (c)
+        {
+            case 'A':  // Asynchronous Notify
+                throw new IOException("Unexpected packet type: " + c);
+
+            case '1':    // Parse Complete (response to Parse)
+                throw new IOException("Unexpected packet type: " + c);
+
+            case 't':    // ParameterDescription
+                throw new IOException("Unexpected packet type: " + c);
+
+            case '2':    // Bind Complete  (response to Bind)
+                throw new IOException("Unexpected packet type: " + c);
+
+            case '3':    // Close Complete (response to Close)
+                input.ReceiveInteger4(); // len, discarded
+                break;
+
+            case 'n':    // No Data        (response to Describe)
+                throw new IOException("Unexpected packet type: " + c);
+
+            case 's':    // Portal Suspended (end of Execute)
+                // nb: this appears *instead* of CommandStatus.
+                // Must be a SELECT if we suspended, so don't worry about it.
+
+                throw new IOException("Unexpected packet type: " + c);
+
+            case 'C':  // Command Status (end of Execute)
+                // Handle status.
+                String status = receiveCommandStatus();
+
+            {
+
+                Field[] fields = fieldsCache;
+                if (fields != null && !noResults && tuples == null)
+                    tuples = new ArrayList();
+
+                if (fields != null || tuples != null)
+                { // There was a resultset.
+                    handler.handleResultRows(new QueryImpl("sql"), fields, tuples, null);
+                    tuples = null;
+                    fieldsCache = null;
+
+                    if (bothRowsAndStatus)
+                        interpretCommandStatus(status);
+                }
+                else
+                {
+                    interpretCommandStatus(status);
+                }
+            }
+            break;
+
+            case 'D':  // Data Transfer (ongoing Execute response)
+                byte[][] tuple = null;
+                try {
+                    tuple = input.ReceiveTupleV3();
+                } catch(OutOfMemoryError oome) {
+                    if (!noResults) {
+                        handler.handleError(new PSQLException(GT.tr("Ran out of memory retrieving query results."), PSQLState.OUT_OF_MEMORY, oome));
+                    }
+                }
+
+
+                if (!noResults && streamingHandler != null)
+                {
+                    // a null tuple means we ran out of memory, already reported above
+                    if (tuple != null)
+                        streamingHandler.handleRow(tuple);
+                }
+                else if (!noResults)
+                {
+                    if (tuples == null)
+                        tuples = new ArrayList();
+                    tuples.add(tuple);
+                }
+
+                break;
+
+            case 'E':  // Error Response (response to pretty much everything; backend then skips until Sync)
+                SQLException error = receiveErrorResponse();
+                handler.handleError(error);
+
+                // keep processing
+                break;
+
+            case 'I':  // Empty Query (end of Execute)
+                input.ReceiveInteger4();
+                handler.handleCommandStatus("EMPTY", 0, 0);
+
+                break;
+
+            case 'N':  // Notice Response
+                SQLWarning warning = receiveNoticeResponse();
+                if (warning != null)
+                    handler.handleWarning(warning);
+                break;
+
+            case 'S':    // Parameter Status
+                throw new IOException("Unexpected packet type: " + c);
+
+            case 'T':  // Row Description (response to Describe)
+                Field[] fields = receiveFields();
+                if (streamingHandler != null)
+                {
+                    tuples = new ArrayList();
+                    streamingHandler.handleRowDescription(fields);
+                }
+                else
+                {
+                    tuples = newTupleList(fields);
+                }
+
+                fieldsCache = fields;
+                break;
+
+            case 'Z':    // Ready For Query (eventual response to Sync)
+                receiveRFQ();
+                if (noticesSeen > noticesDelivered)
+                    handler.handleWarning(new SQLWarning(GT.tr("{0} of {1} notices were not delivered.",
+                            new Object[] {noticesSeen - noticesDelivered, noticesSeen})));
+                return true;
+
+            case 'G':  // CopyInResponse
+                throw new IOException("Unexpected packet type: " + c);
+
+            case 'H':  // CopyOutResponse
+                throw new IOException("Unexpected packet type: " + c);
+
+            case 'c':  // CopyDone
+                throw new IOException("Unexpected packet type: " + c);
+
+            case 'd':  // CopyData
+                throw new IOException("Unexpected packet type: " + c);
+
+            default:
+                throw new IOException("Unexpected packet type: " + c);
+        }
+
+        return false;
+    }
+
+    private List newTupleList(Field[] fields) {
+        return newTupleList(fields, dictionaryMaxDistinctValues);
+    }
+
+    static List newTupleList(Field[] fields, int dictionaryMaxDistinctValues) {
+        if (dictionaryMaxDistinctValues > 0)
+            return new DictionaryTupleList(fields, dictionaryMaxDistinctValues);
+
+        return new ArrayList();
+    }
+
+    /**
+     * Ignore the response message by reading the message length and skipping
+     * over those bytes in the communication stream.
+     */
+    private void skipMessage() throws IOException {
+        int l_len = input.ReceiveInteger4();
+        // skip l_len-4 (length includes the 4 bytes for message length itself
+        input.Skip(l_len - 4);
+    }
+
+    private String receiveCommandStatus() throws IOException {
+        //TODO: better handle the msg len
+        int l_len = input.ReceiveInteger4();
+        //read l_len -5 bytes (-4 for l_len and -1 for trailing \0)
+        String status = input.ReceiveString(l_len - 5);
+        //now read and discard the trailing \0
+        input.Receive(1);
+
+
+        return status;
+    }
+
+    private void interpretCommandStatus(String status) {
+        int update_count = 0;
+        long insert_oid = 0;
+
+        if (status.startsWith("INSERT") || status.startsWith("UPDATE") || status.startsWith("DELETE") || status.startsWith("MOVE"))
+        {
+            try
+            {
+                long updates = Long.parseLong(status.substring(1 + status.lastIndexOf(' ')));
+
+                // deal with situations where the update modifies more than 2^32 rows
+                if ( updates > Integer.MAX_VALUE )
+                    update_count = Statement.SUCCESS_NO_INFO;
+                else
+                    update_count = (int)updates;
+
+                if (status.startsWith("INSERT"))
+                    insert_oid = Long.parseLong(status.substring(1 + status.indexOf(' '),
+                            status.lastIndexOf(' ')));
+            }
+            catch (NumberFormatException nfe)
+            {
+                handler.handleError(new PSQLException(GT.tr("Unable to interpret the update count in command completion tag: {0}.", status), PSQLState.CONNECTION_FAILURE));
+                return ;
+            }
+        }
+
+        handler.handleCommandStatus(status, update_count, insert_oid);
+    }
+
+    private SQLException receiveErrorResponse() throws IOException {
+        // it's possible to get more than one error message for a query
+        // see libpq comments wrt backend closing a connection
+        // so, append messages to a string buffer and keep processing
+        // check at the bottom to see if we need to throw an exception
+
+        int elen = input.ReceiveInteger4();
+        if (serverMessagePolicy.isLazy())
+            return serverMessagePolicy.newError(input.getEncoding(), input.Receive(elen - 4));
+
+        String totalMessage = input.ReceiveString(elen - 4);
+        ServerErrorMessage errorMsg = new ServerErrorMessage(totalMessage, 0);
+
+        return new PSQLException(errorMsg);
+    }
+
+    private SQLWarning receiveNoticeResponse() throws IOException {
+        int nlen = input.ReceiveInteger4();
+        if (!serverMessagePolicy.keepNotice(noticesSeen++, noticesDelivered))
+        {
+            input.Skip(nlen - 4);
+            return null;
+        }
+        noticesDelivered++;
+
+        if (serverMessagePolicy.isLazy())
+            return serverMessagePolicy.newWarning(input.getEncoding(), input.Receive(nlen - 4));
+
+        ServerErrorMessage warnMsg = new ServerErrorMessage(input.ReceiveString(nlen - 4), 0);
+
+        return new PSQLWarning(warnMsg);
+    }
+
+    private Field[] receiveFields() throws IOException
+    {
+        int l_msgSize = input.ReceiveInteger4();
+        if (rowDescriptionCache != null)
+            return rowDescriptionCache.getFields(input.getEncoding(), input.Receive(l_msgSize - 4));
+
+        int size = input.ReceiveInteger2();
+        Field[] fields = new Field[size];
+
+        for (int i = 0; i < fields.length; i++)
+        {
+            String columnLabel = input.ReceiveString();
+            int tableOid = input.ReceiveInteger4();
+            short positionInTable = (short)input.ReceiveInteger2();
+            int typeOid = input.ReceiveInteger4();
+            int typeLength = input.ReceiveInteger2();
+            int typeModifier = input.ReceiveInteger4();
+            int formatType = input.ReceiveInteger2();
+            fields[i] = new Field(columnLabel,
+                    "",  /* name not yet determined */
+                    typeOid, typeLength, typeModifier, tableOid, positionInTable);
+            fields[i].setFormat(formatType);
+        }
+
+        return fields;
+    }
+
+    private void receiveRFQ() throws IOException {
+        if (input.ReceiveInteger4() != 5)
+            throw new IOException("unexpected length of ReadyForQuery message");
+
+        char tStatus = (char)input.ReceiveChar();
+
+        // Update connection state.
+        switch (tStatus)
+        {
+            case 'I':
+//                protoConnection.setTransactionState(ProtocolConnection.TRANSACTION_IDLE);
+                break;
+            case 'T':
+//                protoConnection.setTransactionState(ProtocolConnection.TRANSACTION_OPEN);
+                break;
+            case 'E':
+//                protoConnection.setTransactionState(ProtocolConnection.TRANSACTION_FAILED);
+                break;
+            default:
+                throw new IOException("unexpected transaction state in ReadyForQuery message: " + (int)tStatus);
+        }
+    }
+}
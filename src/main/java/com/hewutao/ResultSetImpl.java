@@ -10,6 +10,9 @@ import org.postgresql.jdbc4.Jdbc4Blob;
 import org.postgresql.jdbc4.Jdbc4Clob;
 import org.postgresql.jdbc4.Jdbc4ResultSetMetaData;
 import org.postgresql.jdbc4.Jdbc4SQLXML;
+import org.postgresql.util.GT;
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.PSQLState;
 
 import java.io.InputStream;
 import java.io.Reader;
@@ -19,16 +22,53 @@ import java.sql.RowId;
 import java.sql.SQLException;
 import java.sql.SQLXML;
 import java.sql.Types;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 public class ResultSetImpl extends AbstractJdbc3gResultSet {
+    // label to index map shared through RowDescriptionCache, if the fields came from one
+    private Map<String, Integer> columnIndex;
+    private boolean columnIndexResolved;
+    private Map<String, Integer> columnSpellings;
+
     public ResultSetImpl(Query originalQuery, BaseStatement statement, Field[] fields, List tuples, ResultCursor cursor,
                            int maxRows, int maxFieldSize, int rsType, int rsConcurrency, int rsHoldability) throws SQLException
     {
         super(originalQuery, statement, fields, tuples, cursor, maxRows, maxFieldSize, rsType, rsConcurrency, rsHoldability);
     }
 
+    public int findColumn(String columnName) throws SQLException
+    {
+        checkClosed();
+
+        if (!columnIndexResolved)
+        {
+            columnIndex = RowDescriptionCache.getColumnIndex(fields);
+            columnIndexResolved = true;
+        }
+        if (columnIndex == null)
+            return super.findColumn(columnName);
+
+        Integer index = columnIndex.get(columnName);
+        if (index == null && columnSpellings != null)
+            index = columnSpellings.get(columnName);
+        if (index == null)
+        {
+            // remember the caller's spelling, as the driver does, to skip toLowerCase next time
+            index = columnIndex.get(columnName.toLowerCase(Locale.US));
+            if (index == null)
+                throw new PSQLException(GT.tr("The column name {0} was not found in this ResultSet.", columnName), PSQLState.UNDEFINED_COLUMN);
+
+            if (columnSpellings == null)
+                columnSpellings = new HashMap<String, Integer>();
+            columnSpellings.put(columnName, index);
+        }
+
+        return index;
+    }
+
     public RowId getRowId(int columnIndex) throws SQLException
     {
         throw org.postgresql.Driver.notImplemented(this.getClass(), "getRowId(int)");
@@ -320,7 +360,17 @@ public class ResultSetImpl extends AbstractJdbc3gResultSet {
 
     protected java.sql.ResultSetMetaData createMetaData() throws SQLException
     {
-        return new Jdbc4ResultSetMetaData(connection, fields);
+        // The metadata fills in table and column details through Field's
+        // setters, and fields may be shared through a RowDescriptionCache.
+        Field[] copy = new Field[fields.length];
+        for (int i = 0; i < fields.length; i++)
+        {
+            Field f = fields[i];
+            copy[i] = new Field(f.getColumnLabel(), f.getColumnName(), f.getOID(), f.getLength(),
+                    f.getMod(), f.getTableOid(), f.getPositionInTable());
+            copy[i].setFormat(f.getFormat());
+        }
+        return new Jdbc4ResultSetMetaData(connection, copy);
     }
 
     protected java.sql.Clob makeClob(long oid) throws SQLException
@@ -0,0 +1,211 @@
+package com.hewutao;
+
+import org.postgresql.core.Encoding;
+import org.postgresql.core.Field;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of decoded RowDescription messages keyed on their raw payload bytes.
+ *
+ * The same statements are executed over and over, so the backend keeps sending
+ * byte-identical RowDescriptions. On a hit the previously decoded {@code Field[]}
+ * is returned as is, together with a precomputed column label to index map used
+ * by {@link ResultSetImpl#findColumn(String)}. The maps are kept per array,
+ * across all cache instances, so result sets find them whichever cache their
+ * fields came from.
+ *
+ * Returned arrays and their {@code Field}s are shared between result sets and
+ * threads and must not be modified. {@code Field} has public setters, which the
+ * driver's result set metadata calls; {@link ResultSetImpl} therefore hands its
+ * metadata a copy of the fields.
+ */
+public class RowDescriptionCache {
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private static final RowDescriptionCache SHARED = new RowDescriptionCache(DEFAULT_MAX_ENTRIES);
+
+    private final int maxEntries;
+    private final ConcurrentHashMap<Key, Field[]> descriptions = new ConcurrentHashMap<Key, Field[]>();
+
+    // column indexes of every array handed out by any cache, keyed weakly on
+    // array identity so arrays dropped by a discarded cache do not pin them
+    private static final ConcurrentHashMap<ArrayRef, Map<String, Integer>> COLUMN_INDEXES = new ConcurrentHashMap<ArrayRef, Map<String, Integer>>();
+    private static final ReferenceQueue<Field[]> STALE = new ReferenceQueue<Field[]>();
+
+    public RowDescriptionCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public static RowDescriptionCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Return the fields described by a RowDescription payload (everything after
+     * the length word), decoding it only when it has not been seen before.
+     */
+    public Field[] getFields(Encoding encoding, byte[] payload) throws IOException {
+        Key key = new Key(encoding.name(), payload);
+        Field[] fields = descriptions.get(key);
+        if (fields != null)
+            return fields;
+
+        fields = parse(encoding, payload);
+
+        // Once full, stop caching rather than evicting; the working set of
+        // distinct statements is expected to be small.
+        if (descriptions.size() >= maxEntries)
+            return fields;
+
+        Field[] existing = descriptions.putIfAbsent(key, fields);
+        if (existing != null)
+            return existing;
+
+        expungeStale();
+        COLUMN_INDEXES.put(new ArrayRef(fields, STALE), Collections.unmodifiableMap(buildColumnIndex(fields)));
+        return fields;
+    }
+
+    /**
+     * Get the precomputed map from lower-cased column label to 1-based index
+     * for a field array. Callers should look it up once and keep it.
+     *
+     * @return the unmodifiable map, or null when the array was not produced by
+     *         a RowDescriptionCache
+     */
+    public static Map<String, Integer> getColumnIndex(Field[] fields) {
+        return COLUMN_INDEXES.get(new ArrayRef(fields, null));
+    }
+
+    public int size() {
+        return descriptions.size();
+    }
+
+    public void clear() {
+        for (Field[] fields : descriptions.values())
+            COLUMN_INDEXES.remove(new ArrayRef(fields, null));
+        descriptions.clear();
+    }
+
+    /**
+     * Decode a RowDescription payload into fields, in the same way the driver
+     * does when reading it straight off the stream.
+     */
+    static Field[] parse(Encoding encoding, byte[] payload) throws IOException {
+        int pos = 0;
+        int size = readInt2(payload, pos);
+        pos += 2;
+        Field[] fields = new Field[size];
+
+        for (int i = 0; i < fields.length; i++)
+        {
+            int end = pos;
+            while (payload[end] != 0)
+                end++;
+            String columnLabel = encoding.decode(payload, pos, end - pos);
+            pos = end + 1;
+
+            int tableOid = readInt4(payload, pos);
+            short positionInTable = (short) readInt2(payload, pos + 4);
+            int typeOid = readInt4(payload, pos + 6);
+            int typeLength = readInt2(payload, pos + 10);
+            int typeModifier = readInt4(payload, pos + 12);
+            int formatType = readInt2(payload, pos + 16);
+            pos += 18;
+
+            fields[i] = new Field(columnLabel,
+                    "",  /* name not yet determined */
+                    typeOid, typeLength, typeModifier, tableOid, positionInTable);
+            fields[i].setFormat(formatType);
+        }
+
+        return fields;
+    }
+
+    private static Map<String, Integer> buildColumnIndex(Field[] fields) {
+        Map<String, Integer> index = new HashMap<String, Integer>(fields.length * 2);
+        // walk backwards so the first column with a given label wins, like the driver
+        for (int i = fields.length - 1; i >= 0; i--)
+            index.put(fields[i].getColumnLabel().toLowerCase(Locale.US), i + 1);
+        return index;
+    }
+
+    private static void expungeStale() {
+        Reference<? extends Field[]> ref;
+        while ((ref = STALE.poll()) != null)
+            COLUMN_INDEXES.remove(ref);
+    }
+
+    private static int readInt2(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+    }
+
+    private static int readInt4(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16) | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+    }
+
+    /**
+     * Weak reference compared by the identity of its referent. A cleared
+     * reference is only equal to itself, which is enough to remove it.
+     */
+    private static final class ArrayRef extends WeakReference<Field[]> {
+        private final int hash;
+
+        ArrayRef(Field[] fields, ReferenceQueue<Field[]> queue) {
+            super(fields, queue);
+            this.hash = System.identityHashCode(fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof ArrayRef))
+                return false;
+            Field[] fields = get();
+            return fields != null && fields == ((ArrayRef) o).get();
+        }
+    }
+
+    private static final class Key {
+        private final String encoding;
+        private final byte[] payload;
+        private final int hash;
+
+        Key(String encoding, byte[] payload) {
+            this.encoding = encoding;
+            this.payload = payload;
+            this.hash = 31 * encoding.hashCode() + Arrays.hashCode(payload);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return hash == other.hash && encoding.equals(other.encoding) && Arrays.equals(payload, other.payload);
+        }
+    }
+}
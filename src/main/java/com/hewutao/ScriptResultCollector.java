@@ -0,0 +1,189 @@
+package com.hewutao;
+
+import org.postgresql.core.BaseStatement;
+import org.postgresql.core.Field;
+import org.postgresql.core.Query;
+import org.postgresql.core.QueryExecutor;
+import org.postgresql.core.ResultCursor;
+import org.postgresql.core.ResultHandler;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result handler for scripts with a large number of statements.
+ *
+ * Unlike {@link ResultHandlerImpl} every append is O(1): update counts and
+ * insert OIDs are kept in primitive arrays indexed by statement, only the
+ * statements that returned rows get a result set, errors are chained from the
+ * tail, and at most {@code maxWarnings} warnings are retained.
+ *
+ * Pass the collector the same flags given to processResults: with
+ * {@link QueryExecutor#QUERY_BOTH_ROWS_AND_STATUS} the command status that
+ * follows a statement's rows belongs to the same statement.
+ */
+public class ScriptResultCollector implements ResultHandler {
+    public static final int DEFAULT_MAX_WARNINGS = 100;
+
+    private SQLException error;
+    private SQLException lastError;
+
+    private int statementCount;
+    private int[] updateCounts = new int[16];
+    private long[] insertOIDs = new long[16];
+    private final Map<Integer, ResultSet> resultSets = new HashMap<Integer, ResultSet>();
+
+    private final int maxWarnings;
+    private final List<SQLWarning> warnings = new ArrayList<SQLWarning>();
+    private int droppedWarnings;
+
+    private final boolean bothRowsAndStatus;
+    // statement whose rows arrived and whose command status is still due
+    private int rowsStatement = -1;
+
+    private BaseStatement originalStat;
+
+    public ScriptResultCollector(Statement stat) {
+        this(stat, DEFAULT_MAX_WARNINGS, 0);
+    }
+
+    public ScriptResultCollector(Statement stat, int maxWarnings) {
+        this(stat, maxWarnings, 0);
+    }
+
+    /**
+     * @param flags the flags the query's results are processed with
+     */
+    public ScriptResultCollector(Statement stat, int maxWarnings, int flags) {
+        this.originalStat = (BaseStatement) stat;
+        this.maxWarnings = maxWarnings;
+        this.bothRowsAndStatus = (flags & QueryExecutor.QUERY_BOTH_ROWS_AND_STATUS) != 0;
+    }
+
+    private int append(int updateCount, long insertOID) {
+        if (statementCount == updateCounts.length)
+        {
+            updateCounts = Arrays.copyOf(updateCounts, statementCount * 2);
+            insertOIDs = Arrays.copyOf(insertOIDs, statementCount * 2);
+        }
+
+        updateCounts[statementCount] = updateCount;
+        insertOIDs[statementCount] = insertOID;
+        return statementCount++;
+    }
+
+    public void handleResultRows(Query fromQuery, Field[] fields, List tuples, ResultCursor cursor) {
+        try
+        {
+            ResultSetImpl newResult = new ResultSetImpl(fromQuery, originalStat, fields, tuples, cursor,
+                    originalStat.getMaxRows(), originalStat.getMaxFieldSize(),
+                    originalStat.getResultSetType(), originalStat.getResultSetConcurrency(), originalStat.getResultSetHoldability());
+            newResult.setFetchSize(originalStat.getFetchSize());
+            newResult.setFetchDirection(originalStat.getFetchDirection());
+            int statement = append(-1, 0);
+            resultSets.put(statement, newResult);
+            if (bothRowsAndStatus)
+                rowsStatement = statement;
+        }
+        catch (SQLException e)
+        {
+            handleError(e);
+        }
+    }
+
+    public void handleCommandStatus(String status, int updateCount, long insertOID) {
+        if (rowsStatement >= 0)
+        {
+            // fill the slot reserved by handleResultRows
+            updateCounts[rowsStatement] = updateCount;
+            insertOIDs[rowsStatement] = insertOID;
+            rowsStatement = -1;
+            return;
+        }
+        append(updateCount, insertOID);
+    }
+
+    public void handleWarning(SQLWarning warning) {
+        if (warnings.size() < maxWarnings)
+            warnings.add(warning);
+        else
+            droppedWarnings++;
+    }
+
+    public void handleError(SQLException newError) {
+        if (error == null)
+            error = newError;
+        else
+            lastError.setNextException(newError);
+
+        // the new error may already carry a chain of its own
+        lastError = newError;
+        while (lastError.getNextException() != null)
+            lastError = lastError.getNextException();
+    }
+
+    public void handleCompletion() throws SQLException {
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * @return the number of statement results collected so far
+     */
+    public int getStatementCount() {
+        return statementCount;
+    }
+
+    /**
+     * @return the update count of the given statement, or -1 if it returned rows
+     *         and the collector was not created with
+     *         {@link QueryExecutor#QUERY_BOTH_ROWS_AND_STATUS}
+     */
+    public int getUpdateCount(int statement) {
+        checkStatement(statement);
+        return updateCounts[statement];
+    }
+
+    public long getInsertOID(int statement) {
+        checkStatement(statement);
+        return insertOIDs[statement];
+    }
+
+    /**
+     * @return the rows returned by the given statement, or null if it returned none
+     */
+    public ResultSet getResultSet(int statement) {
+        checkStatement(statement);
+        return resultSets.get(statement);
+    }
+
+    /**
+     * @return a copy of the update counts of all statements, in order
+     */
+    public int[] getUpdateCounts() {
+        return Arrays.copyOf(updateCounts, statementCount);
+    }
+
+    public List<SQLWarning> getWarnings() {
+        return warnings;
+    }
+
+    /**
+     * @return the number of warnings discarded after the first {@code maxWarnings}
+     */
+    public int getDroppedWarningCount() {
+        return droppedWarnings;
+    }
+
+    private void checkStatement(int statement) {
+        if (statement < 0 || statement >= statementCount)
+            throw new IndexOutOfBoundsException("Statement: " + statement + ", Count: " + statementCount);
+    }
+}
@@ -0,0 +1,62 @@
+package com.hewutao;
+
+import org.postgresql.core.Encoding;
+
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+
+/**
+ * How ErrorResponse and NoticeResponse messages are turned into exceptions
+ * and warnings. The default decodes everything eagerly, as the driver does.
+ *
+ * Workloads that hit errors on purpose (unique violations used as an upsert
+ * test) or emit notices in loops can keep the raw message and decode it
+ * lazily, skip stack traces, and sample or cap the notices delivered per
+ * query. Notices that are not delivered are skipped without being decoded.
+ */
+public class ServerMessagePolicy {
+    public static final ServerMessagePolicy EAGER = new ServerMessagePolicy(false, false, Integer.MAX_VALUE, 1);
+
+    private final boolean lazy;
+    private final boolean stackless;
+    private final int maxNotices;
+    private final int noticeSampleInterval;
+
+    /**
+     * @param lazy keep raw messages and decode them on demand
+     * @param stackless do not capture stack traces; only applies when lazy
+     * @param maxNotices the most notices delivered per query
+     * @param noticeSampleInterval deliver every n-th notice, 1 for all of them
+     */
+    public ServerMessagePolicy(boolean lazy, boolean stackless, int maxNotices, int noticeSampleInterval) {
+        if (noticeSampleInterval < 1)
+            throw new IllegalArgumentException("noticeSampleInterval must be at least 1");
+
+        this.lazy = lazy;
+        this.stackless = stackless;
+        this.maxNotices = maxNotices;
+        this.noticeSampleInterval = noticeSampleInterval;
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * @param seen how many notices the query produced before this one
+     * @param delivered how many of those were delivered
+     */
+    boolean keepNotice(int seen, int delivered) {
+        return delivered < maxNotices && seen % noticeSampleInterval == 0;
+    }
+
+    SQLException newError(Encoding encoding, byte[] fields) {
+        RawServerMessage raw = new RawServerMessage(encoding, fields);
+        return stackless ? new LazyPSQLException.Stackless(raw) : new LazyPSQLException(raw);
+    }
+
+    SQLWarning newWarning(Encoding encoding, byte[] fields) {
+        RawServerMessage raw = new RawServerMessage(encoding, fields);
+        return stackless ? new LazyPSQLWarning.Stackless(raw) : new LazyPSQLWarning(raw);
+    }
+}
@@ -0,0 +1,342 @@
+package com.hewutao;
+
+import java.util.Locale;
+
+/**
+ * Decides whether a simple query can be sent to a read-only replica.
+ *
+ * This is a conservative lexical check, not a parser: every statement in the
+ * query must start with SELECT, WITH, VALUES, TABLE, SHOW or EXPLAIN, and
+ * anything that looks like it writes or locks (INSERT/UPDATE/DELETE inside a
+ * WITH, SELECT ... INTO, FOR UPDATE/SHARE, EXPLAIN ANALYZE, nextval/setval)
+ * sends the whole query to the primary. Functions with side effects called
+ * from a plain SELECT cannot be detected.
+ *
+ * Text the scanner cannot split into tokens with certainty, such as an
+ * unterminated literal or a backslash in a standard string (whose meaning
+ * depends on standard_conforming_strings), fails both checks.
+ */
+public final class StatementClassifier {
+    private static final String[] READ_KEYWORDS = {"select", "with", "values", "table", "show", "explain"};
+    private static final String[] TRANSACTION_KEYWORDS = {"begin", "start", "commit", "end", "rollback", "abort", "savepoint", "release"};
+    private static final String[] WRITE_MARKERS = {"insert", "update", "delete", "merge", "into", "for", "analyze", "nextval", "setval", "lock"};
+
+    private StatementClassifier() {
+    }
+
+    public static boolean isReadOnly(String sql) {
+        Lexer lexer = new Lexer(sql);
+        boolean sawStatement = false;
+        boolean statementStart = true;
+
+        while (true)
+        {
+            switch (lexer.next())
+            {
+                case END:
+                    return sawStatement;
+
+                case INVALID:
+                    return false;
+
+                case SEMICOLON:
+                    statementStart = true;
+                    break;
+
+                case WORD:
+                    if (statementStart)
+                    {
+                        if (!contains(READ_KEYWORDS, lexer.text))
+                            return false;
+                        sawStatement = true;
+                        statementStart = false;
+                    }
+                    else if (contains(WRITE_MARKERS, lexer.text))
+                    {
+                        return false;
+                    }
+                    break;
+
+                case IDENTIFIER:
+                    // "nextval"(...) still calls nextval
+                    if (statementStart || contains(WRITE_MARKERS, lexer.text))
+                        return false;
+                    break;
+
+                case LITERAL:
+                    if (statementStart)
+                        return false;
+                    break;
+
+                case OTHER:
+                    if (statementStart && lexer.text.charAt(0) != '(')
+                        return false;
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return true if the query holds exactly one statement, ignoring a
+     *         trailing semicolon, comments and quoted text
+     */
+    public static boolean isSingleStatement(String sql) {
+        Lexer lexer = new Lexer(sql);
+        int statements = 0;
+        boolean statementStart = true;
+
+        while (true)
+        {
+            switch (lexer.next())
+            {
+                case END:
+                    return statements == 1;
+
+                case INVALID:
+                    return false;
+
+                case SEMICOLON:
+                    statementStart = true;
+                    break;
+
+                default:
+                    if (statementStart)
+                    {
+                        statements++;
+                        statementStart = false;
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return true if the query starts with a transaction control statement
+     *         (BEGIN, START TRANSACTION, COMMIT, END, ROLLBACK, ABORT,
+     *         SAVEPOINT, RELEASE or PREPARE TRANSACTION), or cannot be tokenized
+     */
+    public static boolean isTransactionControl(String sql) {
+        Lexer lexer = new Lexer(sql);
+        Token token;
+        while ((token = lexer.next()) == Token.SEMICOLON)
+            ;
+
+        if (token == Token.INVALID)
+            return true;
+        if (token != Token.WORD)
+            return false;
+        if (contains(TRANSACTION_KEYWORDS, lexer.text))
+            return true;
+        return lexer.text.equals("prepare") && lexer.next() == Token.WORD && lexer.text.equals("transaction");
+    }
+
+    private static boolean contains(String[] words, String word) {
+        for (String w : words)
+            if (w.equals(word))
+                return true;
+        return false;
+    }
+
+    private enum Token {
+        /** keyword or unquoted identifier, lower-cased */
+        WORD,
+        /** double-quoted identifier, as written between the quotes */
+        IDENTIFIER,
+        /** string or dollar-quoted literal */
+        LITERAL,
+        SEMICOLON,
+        /** any other single character */
+        OTHER,
+        END,
+        /** text that cannot be tokenized with certainty */
+        INVALID
+    }
+
+    /**
+     * Splits SQL into the tokens the checks above care about, skipping
+     * whitespace and comments.
+     */
+    private static final class Lexer {
+        private final String sql;
+        private final int len;
+        private int i;
+        String text;
+
+        Lexer(String sql) {
+            this.sql = sql;
+            this.len = sql.length();
+        }
+
+        Token next() {
+            text = null;
+            while (i < len)
+            {
+                char c = sql.charAt(i);
+
+                if (Character.isWhitespace(c))
+                {
+                    i++;
+                }
+                else if (c == '-' && i + 1 < len && sql.charAt(i + 1) == '-')
+                {
+                    int eol = sql.indexOf('\n', i);
+                    i = eol < 0 ? len : eol + 1;
+                }
+                else if (c == '/' && i + 1 < len && sql.charAt(i + 1) == '*')
+                {
+                    if (!skipBlockComment())
+                        return Token.INVALID;
+                }
+                else
+                {
+                    return token(c);
+                }
+            }
+            return Token.END;
+        }
+
+        private Token token(char c) {
+            if (c == ';')
+            {
+                i++;
+                return Token.SEMICOLON;
+            }
+
+            if (c == '\'')
+                return quoted(false);
+
+            if (c == '"')
+            {
+                i++;
+                StringBuilder sb = new StringBuilder();
+                while (true)
+                {
+                    int end = sql.indexOf('"', i);
+                    if (end < 0)
+                        return Token.INVALID;
+                    sb.append(sql, i, end);
+                    i = end + 1;
+                    if (i < len && sql.charAt(i) == '"')
+                    {
+                        sb.append('"');
+                        i++;
+                        continue;
+                    }
+                    text = sb.toString();
+                    return Token.IDENTIFIER;
+                }
+            }
+
+            if (c == '$')
+                return dollar();
+
+            if (Character.isLetter(c) || c == '_')
+            {
+                int start = i;
+                while (i < len && isIdentifierPart(sql.charAt(i)))
+                    i++;
+
+                // E'...' is an escape string; other prefixes (B, X, N, U&) only change the content
+                if (i < len && sql.charAt(i) == '\'' && i - start == 1 && (c == 'e' || c == 'E'))
+                    return quoted(true);
+
+                text = sql.substring(start, i).toLowerCase(Locale.US);
+                return Token.WORD;
+            }
+
+            i++;
+            text = String.valueOf(c);
+            return Token.OTHER;
+        }
+
+        /**
+         * A string literal starting at the quote under the cursor. Doubled
+         * quotes stand for one quote; backslashes escape the next character
+         * only in escape strings. In a standard string a backslash could mean
+         * either, so such a string is rejected.
+         */
+        private Token quoted(boolean escapes) {
+            i++;
+            while (i < len)
+            {
+                char c = sql.charAt(i++);
+                if (c == '\\')
+                {
+                    if (!escapes)
+                        return Token.INVALID;
+                    i++;
+                }
+                else if (c == '\'')
+                {
+                    if (i < len && sql.charAt(i) == '\'')
+                        i++;
+                    else
+                        return Token.LITERAL;
+                }
+            }
+            return Token.INVALID;
+        }
+
+        /**
+         * $tag$ ... $tag$ where the tag is empty or an identifier without $;
+         * any other $ (a parameter such as $1) is a plain character.
+         */
+        private Token dollar() {
+            int tagEnd = i + 1;
+            while (tagEnd < len && sql.charAt(tagEnd) != '$')
+            {
+                char t = sql.charAt(tagEnd);
+                boolean ok = Character.isLetter(t) || t == '_' || (tagEnd > i + 1 && Character.isDigit(t));
+                if (!ok)
+                    break;
+                tagEnd++;
+            }
+
+            if (tagEnd >= len || sql.charAt(tagEnd) != '$')
+            {
+                i++;
+                text = "$";
+                return Token.OTHER;
+            }
+
+            String tag = sql.substring(i, tagEnd + 1);
+            int end = sql.indexOf(tag, tagEnd + 1);
+            if (end < 0)
+                return Token.INVALID;
+            i = end + tag.length();
+            return Token.LITERAL;
+        }
+
+        /**
+         * Block comments nest in PostgreSQL.
+         */
+        private boolean skipBlockComment() {
+            int depth = 0;
+            while (i + 1 < len)
+            {
+                char c = sql.charAt(i);
+                char n = sql.charAt(i + 1);
+                if (c == '/' && n == '*')
+                {
+                    depth++;
+                    i += 2;
+                }
+                else if (c == '*' && n == '/')
+                {
+                    i += 2;
+                    if (--depth == 0)
+                        return true;
+                }
+                else
+                {
+                    i++;
+                }
+            }
+            return false;
+        }
+
+        private static boolean isIdentifierPart(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.hewutao;
+
+import org.postgresql.core.Field;
+import org.postgresql.core.ResultHandler;
+
+/**
+ * A {@link ResultHandler} that is handed rows one at a time as DataRow
+ * messages arrive, instead of buffered into the tuple list.
+ *
+ * For each result set {@link QueryExecutorWrapper#processResults} calls
+ * {@link #handleRowDescription} once, then {@link #handleRow} for every row,
+ * and finally {@link #handleResultRows} with an empty tuple list to mark the
+ * end of the result set.
+ */
+public interface StreamingResultHandler extends ResultHandler {
+    void handleRowDescription(Field[] fields);
+
+    void handleRow(byte[][] tuple);
+}
@@ -0,0 +1,73 @@
+package com.hewutao;
+
+import org.postgresql.core.PGStream;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads whole backend messages from a {@link PGStream} and tees them, byte
+ * for byte, to a trace file that {@link WireTraceReplay} can play back.
+ *
+ * The trace is a short header (magic, version, client encoding name)
+ * followed by the messages exactly as the server sent them: type byte,
+ * length word and payload.
+ */
+public class WireTraceRecorder extends MessageBufferInput implements Closeable {
+    static final int MAGIC = 0x50475452; // "PGTR"
+    static final int VERSION = 1;
+
+    private final PGStream pgStream;
+    private final DataOutputStream out;
+
+    public WireTraceRecorder(PGStream pgStream, File trace) throws IOException {
+        super(pgStream.getEncoding());
+        this.pgStream = pgStream;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(trace), 64 * 1024));
+
+        byte[] encodingName = encoding.name().getBytes(StandardCharsets.US_ASCII);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeShort(encodingName.length);
+        out.write(encodingName);
+    }
+
+    /**
+     * @return true if part of the last message received is still unread
+     */
+    public boolean hasBufferedInput() {
+        return buffer != null && buffer.hasRemaining();
+    }
+
+    @Override
+    protected boolean fill() throws IOException {
+        int type = pgStream.ReceiveChar();
+        int len = pgStream.ReceiveInteger4();
+
+        byte[] message = new byte[1 + len];
+        message[0] = (byte) type;
+        message[1] = (byte) (len >>> 24);
+        message[2] = (byte) (len >>> 16);
+        message[3] = (byte) (len >>> 8);
+        message[4] = (byte) len;
+        pgStream.Receive(message, 5, len - 4);
+
+        out.write(message);
+        if (type == 'Z')
+            out.flush();
+
+        buffer = ByteBuffer.wrap(message);
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,83 @@
+package com.hewutao;
+
+import org.postgresql.core.Encoding;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Replays a trace written by {@link WireTraceRecorder} from a memory-mapped
+ * file, so {@link QueryExecutorWrapper#processResults} and result handlers can
+ * be exercised against recorded server output without a database.
+ *
+ * <pre>
+ * WireTraceReplay replay = new WireTraceReplay(file);
+ * QueryExecutorWrapper wrapper = new QueryExecutorWrapper(replay);
+ * while (replay.hasRemaining())
+ *     wrapper.processResults(handler, 0);
+ * </pre>
+ *
+ * Traces are mapped in one piece and so are limited to 2GB.
+ */
+public class WireTraceReplay extends MessageBufferInput {
+    private final int start;
+
+    public WireTraceReplay(File trace) throws IOException {
+        this(trace, mapTrace(trace));
+    }
+
+    private WireTraceReplay(File trace, MappedByteBuffer mapped) throws IOException {
+        super(readHeader(trace, mapped));
+        this.start = mapped.position();
+        this.buffer = mapped;
+    }
+
+    /**
+     * @return true while there are recorded messages left to replay
+     */
+    public boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Start again from the first recorded message.
+     */
+    public void rewind() {
+        buffer.position(start);
+    }
+
+    @Override
+    protected boolean fill() {
+        return false;
+    }
+
+    private static MappedByteBuffer mapTrace(File trace) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(trace, "r")) {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("trace file too large to map: " + length + " bytes");
+
+            // the mapping stays valid after the channel is closed
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+    }
+
+    private static Encoding readHeader(File trace, ByteBuffer mapped) throws IOException {
+        if (mapped.remaining() < 10 || mapped.getInt() != WireTraceRecorder.MAGIC)
+            throw new IOException("not a wire trace: " + trace);
+
+        int version = mapped.getInt();
+        if (version != WireTraceRecorder.VERSION)
+            throw new IOException("unsupported wire trace version " + version + ": " + trace);
+
+        byte[] encodingName = new byte[mapped.getShort()];
+        mapped.get(encodingName);
+
+        return Encoding.getJVMEncoding(new String(encodingName, StandardCharsets.US_ASCII));
+    }
+}
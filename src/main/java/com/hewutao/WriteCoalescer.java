@@ -0,0 +1,297 @@
+package com.hewutao;
+
+import org.postgresql.core.Field;
+import org.postgresql.core.Query;
+import org.postgresql.core.QueryExecutor;
+import org.postgresql.core.ResultCursor;
+import org.postgresql.core.ResultHandler;
+import org.postgresql.util.GT;
+import org.postgresql.util.PSQLException;
+import org.postgresql.util.PSQLState;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit for small write statements issued concurrently by many threads.
+ *
+ * Statements submitted within a short window are joined into one simple
+ * query on a single connection, so they share one round trip and one commit.
+ * The server runs a multi-statement query as one implicit transaction, so a
+ * batch commits or rolls back as a whole.
+ *
+ * Each CommandComplete is matched back to the statement that produced it. If a
+ * statement fails, only its caller gets the error; the rest of the batch was
+ * rolled back or never ran, and is sent again without it. An error that cannot
+ * be attributed to one statement, such as a syntax error (reported before
+ * anything runs) or a deferred constraint failing at commit, makes every
+ * statement of the batch run on its own.
+ *
+ * Statements must be single statements without transaction control; others
+ * are rejected by {@link #submit}.
+ *
+ * If an exchange with the server fails part way, the connection is closed and
+ * the coalescer shuts down: the batch and everything submitted since fail.
+ */
+public class WriteCoalescer implements Closeable {
+    public static final long DEFAULT_WINDOW_MICROS = 500;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    private final QueryExecutorWrapper wrapper;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+    private final Thread flusher;
+
+    private volatile long windowNanos = TimeUnit.MICROSECONDS.toNanos(DEFAULT_WINDOW_MICROS);
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile boolean closed;
+    // why the coalescer shut itself down, if it did
+    private volatile Exception failure;
+
+    /**
+     * @param wrapper a connection used only by this coalescer from now on
+     */
+    public WriteCoalescer(QueryExecutorWrapper wrapper) {
+        this.wrapper = wrapper;
+        this.flusher = new Thread(this::run, "write-coalescer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * How long to wait for more statements after the first one of a batch.
+     */
+    public void setWindow(long window, TimeUnit unit) {
+        this.windowNanos = unit.toNanos(window);
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Queue a write statement.
+     *
+     * @return a future for the statement's update count
+     */
+    public CompletableFuture<Integer> submit(String sql) {
+        CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+        if (!StatementClassifier.isSingleStatement(sql))
+        {
+            future.completeExceptionally(new PSQLException(GT.tr("Only single statements can be coalesced: {0}", sql), PSQLState.INVALID_PARAMETER_VALUE));
+            return future;
+        }
+        if (StatementClassifier.isTransactionControl(sql))
+        {
+            // a COMMIT would make the retry of a failed batch run earlier statements twice
+            future.completeExceptionally(new PSQLException(GT.tr("Transaction control statements cannot be coalesced: {0}", sql), PSQLState.INVALID_PARAMETER_VALUE));
+            return future;
+        }
+
+        // checked and added together, so close() cannot slip in between and leave it unflushed
+        synchronized (this)
+        {
+            if (closed)
+            {
+                future.completeExceptionally(closedException());
+                return future;
+            }
+            queue.add(new Pending(sql, future));
+        }
+        return future;
+    }
+
+    /**
+     * Flush what has been submitted and stop.
+     */
+    @Override
+    public void close() {
+        synchronized (this)
+        {
+            closed = true;
+        }
+        flusher.interrupt();
+        try
+        {
+            flusher.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<Pending>();
+        while (!closed || !queue.isEmpty())
+        {
+            try
+            {
+                Pending first = closed ? queue.poll() : queue.take();
+                if (first == null)
+                    break;
+                batch.add(first);
+
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize && !closed)
+                {
+                    Pending next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // closing; flush whatever is left
+            }
+
+            queue.drainTo(batch, maxBatchSize - batch.size());
+            if (failure != null)
+            {
+                for (Pending p : batch)
+                    p.future.completeExceptionally(closedException());
+            }
+            else if (!batch.isEmpty())
+            {
+                execute(batch);
+            }
+            batch = new ArrayList<Pending>();
+        }
+    }
+
+    private void execute(List<Pending> batch) {
+        while (!batch.isEmpty())
+        {
+            if (failure != null)
+            {
+                for (Pending p : batch)
+                    p.future.completeExceptionally(closedException());
+                return;
+            }
+
+            StringBuilder sql = new StringBuilder();
+            for (Pending p : batch)
+                sql.append(p.sql).append("\n;\n");  // newline first, in case it ends in a -- comment
+
+            BatchHandler handler = new BatchHandler(batch);
+            try
+            {
+                wrapper.sendSimpleQuery(sql.toString());
+                wrapper.processResults(handler, QueryExecutor.QUERY_BOTH_ROWS_AND_STATUS);
+            }
+            catch (Exception e)
+            {
+                // the stream may be stopped part way through the response
+                shutDown(e);
+                for (Pending p : batch)
+                    p.future.completeExceptionally(e);
+                return;
+            }
+
+            if (handler.error == null)
+            {
+                for (int i = 0; i < batch.size(); i++)
+                    batch.get(i).future.complete(handler.updateCounts[i]);
+                return;
+            }
+
+            if (handler.completed > 0 && handler.completed < batch.size() && !isSyntaxError(handler.error))
+            {
+                // the failing statement gets the error, the others go again
+                batch.remove(handler.completed).future.completeExceptionally(handler.error);
+            }
+            else if (batch.size() == 1)
+            {
+                batch.get(0).future.completeExceptionally(handler.error);
+                return;
+            }
+            else
+            {
+                for (Pending p : batch)
+                    execute(new ArrayList<Pending>(Collections.singletonList(p)));
+                return;
+            }
+        }
+    }
+
+    private void shutDown(Exception cause) {
+        synchronized (this)
+        {
+            closed = true;
+            failure = cause;
+        }
+        try
+        {
+            wrapper.close();
+        }
+        catch (IOException e)
+        {
+            // closing anyway
+        }
+    }
+
+    private PSQLException closedException() {
+        return new PSQLException(GT.tr("This write coalescer has been closed."), PSQLState.CONNECTION_DOES_NOT_EXIST, failure);
+    }
+
+    /**
+     * The server parses the whole query before running any of it, so a syntax
+     * error arrives before the first CommandComplete whichever statement has
+     * it.
+     */
+    private static boolean isSyntaxError(SQLException e) {
+        return PSQLState.SYNTAX_ERROR.getState().equals(e.getSQLState());
+    }
+
+    private static final class Pending {
+        final String sql;
+        final CompletableFuture<Integer> future;
+
+        Pending(String sql, CompletableFuture<Integer> future) {
+            this.sql = sql;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Counts CommandCompletes to tell which statement each result or error
+     * belongs to.
+     */
+    private static final class BatchHandler implements ResultHandler {
+        final int[] updateCounts;
+        int completed;
+        SQLException error;
+
+        BatchHandler(List<Pending> batch) {
+            this.updateCounts = new int[batch.size()];
+        }
+
+        public void handleResultRows(Query fromQuery, Field[] fields, List tuples, ResultCursor cursor) {
+            // rows from RETURNING; the command status that follows carries the count
+        }
+
+        public void handleCommandStatus(String status, int updateCount, long insertOID) {
+            if (error == null && completed < updateCounts.length)
+                updateCounts[completed++] = updateCount;
+        }
+
+        public void handleWarning(SQLWarning warning) {
+        }
+
+        public void handleError(SQLException newError) {
+            if (error == null)
+                error = newError;
+        }
+
+        public void handleCompletion() {
+        }
+    }
+}